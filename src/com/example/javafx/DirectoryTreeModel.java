@@ -0,0 +1,246 @@
+package com.example.javafx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.ObservableList;
+import javafx.event.Event;
+import javafx.scene.control.TreeItem;
+
+/**
+ * Builds the directory TreeItems of the file system browser. Directories are
+ * listed on a background thread, an item shows a loading placeholder (an
+ * item with a null value) until its subdirectories are known and the leaf
+ * check stops at the first subdirectory found. Listings are cached by
+ * directory and reused while the directory modification time is unchanged;
+ * an expanded item is checked again each time it is expanded.
+ */
+public class DirectoryTreeModel {
+
+    private static final Logger logger = Logger.getLogger("com.example.javafx.DirectoryTreeModel");
+    private final Map<File, Listing> cache = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "directory-loader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @param dir A directory.
+     * @return A TreeItem loading the subdirectories of dir when they are
+     * first needed.
+     */
+    public TreeItem<File> createNode(File dir) {
+        return new DirectoryItem(dir);
+    }
+
+    /**
+     * Drops the cached listing of a directory.
+     */
+    public void invalidate(File dir) {
+        cache.remove(dir);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the cached listing of dir if its modification time is
+     * unchanged and it is complete enough, otherwise lists dir again. Called
+     * on the executor.
+     * @param full true if the subdirectories are needed, false if only
+     * whether there are any.
+     */
+    private Listing load(File dir, boolean full) {
+        // read before listing so a change during the listing is seen next time
+        long modified = dir.lastModified();
+        Listing cached = cache.get(dir);
+        if (cached != null && cached.modified == modified && (cached.dirs != null || !full)) {
+            return cached;
+        }
+        List<File> dirs = full ? new ArrayList<File>() : null;
+        boolean hasDirs = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path p : stream) {
+                if (Files.isDirectory(p)) {
+                    hasDirs = true;
+                    if (!full) {
+                        break;
+                    }
+                    dirs.add(p.toFile());
+                }
+            }
+        } catch (IOException | DirectoryIteratorException ex) {
+            logger.log(Level.FINE, "Unable to list " + dir, ex);
+        }
+        Listing listing = new Listing(modified, dirs, hasDirs);
+        cache.put(dir, listing);
+        return listing;
+    }
+
+    private static class Listing {
+
+        private final long modified;
+        // null if only the leaf check was done
+        private final List<File> dirs;
+        private final boolean hasDirs;
+
+        Listing(long modified, List<File> dirs, boolean hasDirs) {
+            this.modified = modified;
+            this.dirs = dirs;
+            this.hasDirs = hasDirs;
+        }
+    }
+
+    /**
+     * A directory whose children are its subdirectories. Only used on the
+     * JavaFX Application Thread, listings are applied with runLater.
+     */
+    private class DirectoryItem extends TreeItem<File> {
+
+        private boolean childrenRequested = false;
+        private boolean childrenLoaded = false;
+        private boolean loading = false;
+        private boolean leafRequested = false;
+        private boolean leaf = false;
+
+        DirectoryItem(File dir) {
+            super(dir);
+            expandedProperty().addListener(new ChangeListener<Boolean>() {
+
+                @Override
+                public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
+                    if (newValue && childrenLoaded) {
+                        loadChildren();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public ObservableList<TreeItem<File>> getChildren() {
+            if (!childrenRequested) {
+                childrenRequested = true;
+                Listing cached = cache.get(getValue());
+                if (cached != null && cached.dirs != null) {
+                    // show the cached listing while it is checked
+                    setChildren(cached.dirs);
+                } else {
+                    super.getChildren().setAll(Collections.singletonList(new TreeItem<File>()));
+                }
+                loadChildren();
+            }
+            return super.getChildren();
+        }
+
+        @Override
+        public boolean isLeaf() {
+            if (childrenLoaded) {
+                // may have been updated by a WatchListener since
+                return super.getChildren().isEmpty();
+            }
+            if (childrenRequested) {
+                return false;
+            }
+            if (!leafRequested) {
+                leafRequested = true;
+                Listing cached = cache.get(getValue());
+                if (cached != null) {
+                    leaf = !cached.hasDirs;
+                }
+                checkLeaf();
+            }
+            return leaf;
+        }
+
+        private void checkLeaf() {
+            final File dir = getValue();
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Listing listing = load(dir, false);
+                    Platform.runLater(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            if (!childrenRequested && leaf == listing.hasDirs) {
+                                leaf = !listing.hasDirs;
+                                // makes the TreeView update the disclosure node
+                                Event.fireEvent(DirectoryItem.this, new TreeModificationEvent<>(TreeItem.<File>valueChangedEvent(), DirectoryItem.this));
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void loadChildren() {
+            if (loading) {
+                return;
+            }
+            loading = true;
+            final File dir = getValue();
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Listing listing = load(dir, true);
+                    Platform.runLater(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            loading = false;
+                            setChildren(listing.dirs);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Replaces the children, keeping the items (and so the expanded
+         * state) of directories that are still there.
+         */
+        private void setChildren(List<File> dirs) {
+            ObservableList<TreeItem<File>> current = super.getChildren();
+            Map<File, TreeItem<File>> existing = new HashMap<>();
+            for (TreeItem<File> child : current) {
+                if (child.getValue() != null) {
+                    existing.put(child.getValue(), child);
+                }
+            }
+            List<TreeItem<File>> children = new ArrayList<>(dirs.size());
+            for (File dir : dirs) {
+                TreeItem<File> child = existing.get(dir);
+                children.add(child != null ? child : createNode(dir));
+            }
+            childrenLoaded = true;
+            if (!children.equals(current)) {
+                current.setAll(children);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.javafx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Extracts the thumbnail most cameras embed in the EXIF IFD1 of a JPEG. Only
+ * the start of the file is read, the APP1 segment holding the EXIF data has
+ * to come before the image data and can not exceed 64KB.
+ */
+public class ExifThumbnail {
+
+    // SOI + a JFIF APP0 + the largest possible APP1 segment
+    private static final int MAX_HEADER_BYTES = 2 + 0x10000 + 0x10000;
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * @param name A file name or path.
+     * @return true if the name has a JPEG extension.
+     */
+    public static boolean isJpeg(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0
+                && (name.regionMatches(true, dot, ".jpg", 0, 4) && name.length() - dot == 4
+                || name.regionMatches(true, dot, ".jpeg", 0, 5) && name.length() - dot == 5);
+    }
+
+    /**
+     * Reads the embedded thumbnail of a JPEG file.
+     * @param f A JPEG file.
+     * @return The bytes of the embedded JPEG thumbnail, or null if the file
+     * has none.
+     * @throws IOException If the file can not be read.
+     */
+    public static byte[] read(File f) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+            byte[] buf = new byte[(int) Math.min(in.length(), MAX_HEADER_BYTES)];
+            in.readFully(buf);
+            return extract(buf);
+        }
+    }
+
+    private static byte[] extract(byte[] buf) {
+        if (buf.length < 4 || u8(buf, 0) != 0xFF || u8(buf, 1) != 0xD8) {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= buf.length && u8(buf, pos) == 0xFF) {
+            int marker = u8(buf, pos + 1);
+            int length = (u8(buf, pos + 2) << 8) | u8(buf, pos + 3);
+            if (marker == 0xDA || marker == 0xD9 || length < 2) {
+                // start of scan, end of image or a corrupt segment, there is no EXIF segment
+                return null;
+            }
+            int start = pos + 4;
+            int end = pos + 2 + length;
+            if (marker == 0xE1 && end <= buf.length && length > 8
+                    && buf[start] == 'E' && buf[start + 1] == 'x' && buf[start + 2] == 'i' && buf[start + 3] == 'f'
+                    && buf[start + 4] == 0 && buf[start + 5] == 0) {
+                return extractFromTiff(buf, start + 6, end);
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    private static byte[] extractFromTiff(byte[] buf, int tiff, int end) {
+        if (tiff + 8 > end) {
+            return null;
+        }
+        boolean little;
+        if (buf[tiff] == 'I' && buf[tiff + 1] == 'I') {
+            little = true;
+        } else if (buf[tiff] == 'M' && buf[tiff + 1] == 'M') {
+            little = false;
+        } else {
+            return null;
+        }
+        if (u16(buf, tiff + 2, little) != 42) {
+            return null;
+        }
+        // skip IFD0 to find IFD1
+        long ifd0 = u32(buf, tiff + 4, little);
+        if (ifd0 < 8 || tiff + ifd0 + 2 > end) {
+            return null;
+        }
+        int ifd0Pos = tiff + (int) ifd0;
+        int count = u16(buf, ifd0Pos, little);
+        int nextPos = ifd0Pos + 2 + count * 12;
+        if (nextPos + 4 > end) {
+            return null;
+        }
+        long ifd1 = u32(buf, nextPos, little);
+        if (ifd1 < 8 || tiff + ifd1 + 2 > end) {
+            return null;
+        }
+        int ifd1Pos = tiff + (int) ifd1;
+        count = u16(buf, ifd1Pos, little);
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd1Pos + 2 + i * 12;
+            if (entry + 12 > end) {
+                return null;
+            }
+            int tag = u16(buf, entry, little);
+            if (tag == TAG_JPEG_OFFSET) {
+                offset = u32(buf, entry + 8, little);
+            } else if (tag == TAG_JPEG_LENGTH) {
+                length = u32(buf, entry + 8, little);
+            }
+        }
+        // the thumbnail has to hold at least the SOI marker checked below
+        if (offset <= 0 || length < 2 || tiff + offset + length > end) {
+            return null;
+        }
+        int thumbStart = tiff + (int) offset;
+        if (u8(buf, thumbStart) != 0xFF || u8(buf, thumbStart + 1) != 0xD8) {
+            return null;
+        }
+        byte[] thumb = new byte[(int) length];
+        System.arraycopy(buf, thumbStart, thumb, 0, thumb.length);
+        return thumb;
+    }
+
+    private static int u8(byte[] buf, int pos) {
+        return buf[pos] & 0xFF;
+    }
+
+    private static int u16(byte[] buf, int pos, boolean little) {
+        if (little) {
+            return u8(buf, pos) | (u8(buf, pos + 1) << 8);
+        }
+        return (u8(buf, pos) << 8) | u8(buf, pos + 1);
+    }
+
+    private static long u32(byte[] buf, int pos, boolean little) {
+        if (little) {
+            return (u16(buf, pos, true) | ((long) u16(buf, pos + 2, true) << 16)) & 0xFFFFFFFFL;
+        }
+        return (((long) u16(buf, pos, false) << 16) | u16(buf, pos + 2, false)) & 0xFFFFFFFFL;
+    }
+}
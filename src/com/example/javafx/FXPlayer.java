@@ -1,9 +1,9 @@
 package com.example.javafx;
 
-import java.io.File;
 import javafx.animation.Interpolator;
 import javafx.animation.KeyFrame;
 import javafx.animation.KeyValue;
+import javafx.animation.PauseTransition;
 import javafx.animation.TimelineBuilder;
 import javafx.application.Platform;
 import javafx.beans.InvalidationListener;
@@ -20,7 +20,6 @@ import javafx.scene.control.Slider;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.*;
-import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
 import javafx.scene.media.MediaPlayer.Status;
 import javafx.scene.media.MediaView;
@@ -30,7 +29,21 @@ import javafx.util.Duration;
 public class FXPlayer extends BorderPane {
 
     private final StackPane modalDimmer;
+    private final MediaPlayerManager players;
     private MediaPlayer mp;
+    private boolean disposed = false;
+    // the MediaPlayerManager disposed the player to make room for another one
+    private final Runnable revoked = new Runnable() {
+
+        @Override
+        public void run() {
+            if (!disposed) {
+                disposed = true;
+                setCenter(new Text("Playback was stopped, too many videos are open"));
+                setBottom(null);
+            }
+        }
+    };
     private MediaView mediaView;
     private final boolean repeat = false;
     private boolean stopRequested = false;
@@ -89,10 +102,15 @@ public class FXPlayer extends BorderPane {
         return modalDimmer.getHeight() - 60;
     }
 
-    public FXPlayer(final String filePath, final StackPane modalDimmer) {
+    /**
+     * @param filePath The video file.
+     * @param modalDimmer The pane the player is shown in.
+     * @param players The manager the MediaPlayer is acquired from.
+     */
+    public FXPlayer(final String filePath, final StackPane modalDimmer, final MediaPlayerManager players) {
         this.modalDimmer = modalDimmer;
-        Media media = new Media(new File(filePath).toURI().toString());
-        mp = new MediaPlayer(media);
+        this.players = players;
+        mp = players.acquire(filePath, revoked);
 
         setStyle("-fx-background-color: #bfc2c7;");
         final Pane mvPane = new Pane();
@@ -107,7 +125,7 @@ public class FXPlayer extends BorderPane {
 
             @Override
             public void handle(ActionEvent arg0) {
-                mp.stop();
+                dispose();
                 modalDimmer.setCache(true);
                 TimelineBuilder.create().keyFrames(
                         new KeyFrame(Duration.seconds(1),
@@ -272,27 +290,41 @@ public class FXPlayer extends BorderPane {
                 mediaBar.getChildren().add(volumeSlider);
                 setBottom(mediaBar);
                 mp.setAutoPlay(true);
+                if (mp.getStatus() == Status.READY) {
+                    // autoPlay only applies to players becoming ready
+                    mp.play();
+                }
             }
         };
 
-        mp.setOnReady(readyHandler);
+        onReady(readyHandler);
         mp.setOnError(new Runnable() {
 
             private int attempts;
 
             @Override
             public void run() {
-                mp.stop();
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ie) {
+                if (disposed) {
+                    return;
                 }
+                players.release(mp);
                 if (attempts < 10) {
                     attempts++;
-                    Media media = new Media(new File(filePath).toURI().toString());
-                    mp = new MediaPlayer(media);
-                    mp.setOnError(this);
-                    mp.setOnReady(readyHandler);
+                    final Runnable errorHandler = this;
+                    // retry after a pause without blocking the JavaFX Application Thread
+                    PauseTransition pause = new PauseTransition(Duration.millis(200));
+                    pause.setOnFinished(new EventHandler<ActionEvent>() {
+
+                        @Override
+                        public void handle(ActionEvent t) {
+                            if (!disposed) {
+                                mp = players.acquire(filePath, revoked);
+                                mp.setOnError(errorHandler);
+                                onReady(readyHandler);
+                            }
+                        }
+                    });
+                    pause.play();
                 } else {
                     Text t = new Text("Failed to play video. Try:\n* Not using a remote connection (local playback)\n* A different video file\n* Updating your video card driver");
                     setCenter(t);
@@ -303,6 +335,29 @@ public class FXPlayer extends BorderPane {
 
     }
 
+    /**
+     * Runs the ready handler now if the player was opened ahead and is
+     * already ready, otherwise when it becomes ready.
+     */
+    private void onReady(Runnable readyHandler) {
+        if (mp.getStatus() == Status.READY) {
+            readyHandler.run();
+        } else {
+            mp.setOnReady(readyHandler);
+        }
+    }
+
+    /**
+     * Stops playback and disposes the MediaPlayer, used when the player is
+     * closed or stepped away from.
+     */
+    public void dispose() {
+        if (!disposed) {
+            disposed = true;
+            players.release(mp);
+        }
+    }
+
     protected void updateValues() {
         if (playTime != null && timeSlider != null && volumeSlider != null && duration != null) {
             Platform.runLater(new Runnable() {
@@ -0,0 +1,162 @@
+package com.example.javafx;
+
+import com.example.media.MediaItem;
+import com.example.media.MediaItemListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the images next to the one being viewed ahead of time, the way an
+ * ImageViewer of the same size would read them, so stepping to them does not
+ * wait for decoding. Read images are kept in an LRU bounded by pixel bytes
+ * and dropped when a MediaManager reports them as updated or deleted.
+ */
+public class ImagePrefetcher implements MediaItemListener {
+
+    private static final Logger logger = Logger.getLogger("com.example.javafx.ImagePrefetcher");
+    private final long maxBytes;
+    private long bytes = 0;
+    // access ordered, the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Future<?>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-prefetch");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * @param maxBytes The pixel bytes the read images may hold.
+     */
+    public ImagePrefetcher(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param path The path of the image file.
+     * @param width The width of the viewer.
+     * @param height The height of the viewer.
+     * @return The image read for a viewer of this size or null.
+     */
+    public ImageViewer.FittedImage get(String path, double width, double height) {
+        synchronized (images) {
+            Entry entry = images.get(path);
+            return entry != null && entry.width == width && entry.height == height ? entry.image : null;
+        }
+    }
+
+    /**
+     * Reads images in the background, in the given order, and cancels the
+     * reads still queued for images which are not among them.
+     * @param paths The paths of the image files, nearest first.
+     * @param width The width of the viewer.
+     * @param height The height of the viewer.
+     */
+    public void prefetch(Collection<String> paths, final double width, final double height) {
+        for (Iterator<Map.Entry<String, Future<?>>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Future<?>> entry = it.next();
+            if (!paths.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+        for (final String path : paths) {
+            if (pending.containsKey(path) || get(path, width, height) != null) {
+                continue;
+            }
+            // queued only once it is pending, so it is removed after it is added
+            FutureTask<Void> read = new FutureTask<>(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        put(path, new Entry(ImageViewer.readFitted(new File(path), width, height), width, height));
+                    } catch (IOException | RuntimeException ex) {
+                        logger.log(Level.FINE, "Unable to prefetch " + path, ex);
+                    } finally {
+                        pending.remove(path);
+                    }
+                }
+            }, null);
+            pending.put(path, read);
+            executor.execute(read);
+        }
+    }
+
+    private void put(String path, Entry entry) {
+        synchronized (images) {
+            Entry old = images.put(path, entry);
+            if (old != null) {
+                bytes -= old.image.getByteCount();
+            }
+            bytes += entry.image.getByteCount();
+            Iterator<Map.Entry<String, Entry>> it = images.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getKey().equals(path)) {
+                    break;
+                }
+                bytes -= eldest.getValue().image.getByteCount();
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidate(String path) {
+        synchronized (images) {
+            Entry entry = images.remove(path);
+            if (entry != null) {
+                bytes -= entry.image.getByteCount();
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void mediaItemCreated(MediaItem item) {
+        invalidate(item.getId());
+    }
+
+    @Override
+    public void mediaItemUpdated(MediaItem item) {
+        invalidate(item.getId());
+    }
+
+    @Override
+    public void mediaItemDeleted(String id) {
+        invalidate(id);
+    }
+
+    private static class Entry {
+
+        private final ImageViewer.FittedImage image;
+        private final double width;
+        private final double height;
+
+        Entry(ImageViewer.FittedImage image, double width, double height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.example.javafx;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.event.EventHandler;
+import javafx.scene.control.Label;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Region;
+import javafx.scene.shape.Rectangle;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Shows an image fitted to the viewer, zoomed with the scroll wheel and
+ * panned by dragging. Images are decoded on a background thread with an
+ * ImageIO reader, subsampled to the size they are shown at, so a very large
+ * image is never decoded at full size: the fitted image is read with the
+ * subsampling matching the viewer size, and when zoomed in past its
+ * resolution the visible tiles of a pyramid level are read from their source
+ * regions. Level n is the image subsampled by 2^n, cut into TILE_SIZE
+ * tiles which are kept in an LRU bounded by MAX_TILE_BYTES. Formats without
+ * an ImageIO reader are shown fitted, without zoom.
+ */
+public class ImageViewer extends Region {
+
+    private static final Logger logger = Logger.getLogger("com.example.javafx.ImageViewer");
+    public static final int TILE_SIZE = 512;
+    private static final long MAX_TILE_BYTES = 48L * 1024 * 1024;
+    private static final double MAX_ZOOM = 4;
+    private static final double ZOOM_STEP = 1.25;
+    // ImageReaders are not thread safe, all reads happen on this thread
+    private static final ExecutorService decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-decoder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final File file;
+    private final ImageView baseView = new ImageView();
+    private final Pane tileLayer = new Pane();
+    private final Label loadingLabel = new Label("Loading...");
+    // the fields below are only used on the JavaFX Application Thread
+    private int sourceWidth = 0;
+    private int sourceHeight = 0;
+    private int baseSubsampling = 1;
+    private boolean tiled = false;
+    // screen pixels per source pixel and the source pixel at the top left
+    private double zoom = 0;
+    private boolean fitted = true;
+    private double offsetX = 0;
+    private double offsetY = 0;
+    private double dragX;
+    private double dragY;
+    private long tileBytes = 0;
+    // access ordered, the first entry is the least recently used
+    private final LinkedHashMap<Long, Image> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<Long> pendingTiles = new HashSet<>();
+    // read by the decoder thread to skip tiles scrolled away from
+    private volatile Set<Long> visibleTiles = new HashSet<>();
+    private volatile boolean closed = false;
+    // only used on the decoder thread
+    private ImageReader reader;
+    private ImageInputStream input;
+
+    /**
+     * @param file The image file.
+     * @param width The width of the viewer.
+     * @param height The height of the viewer.
+     */
+    public ImageViewer(File file, double width, double height) {
+        this(file, width, height, null);
+    }
+
+    /**
+     * @param file The image file.
+     * @param width The width of the viewer.
+     * @param height The height of the viewer.
+     * @param fitted The image read ahead with readFitted for the same size,
+     * or null to read it.
+     */
+    public ImageViewer(File file, double width, double height, FittedImage fitted) {
+        this.file = file;
+        setPrefSize(width, height);
+        setMaxSize(width, height);
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+        baseView.setSmooth(true);
+        tileLayer.setManaged(false);
+        tileLayer.setMouseTransparent(true);
+        getChildren().addAll(baseView, tileLayer, loadingLabel);
+        initHandlers();
+        if (fitted != null) {
+            showBase(fitted);
+        }
+        loadBase(width, height, fitted);
+    }
+
+    /**
+     * Stops loading tiles and releases the reader and the decoded pixels.
+     */
+    public void close() {
+        closed = true;
+        tiles.clear();
+        tileBytes = 0;
+        tileLayer.getChildren().clear();
+        decoder.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                disposeReader();
+            }
+        });
+    }
+
+    private void initHandlers() {
+        addEventHandler(ScrollEvent.SCROLL, new EventHandler<ScrollEvent>() {
+
+            @Override
+            public void handle(ScrollEvent e) {
+                if (!tiled || e.getDeltaY() == 0) {
+                    return;
+                }
+                e.consume();
+                zoomAt(e.getX(), e.getY(), e.getDeltaY() > 0 ? zoom * ZOOM_STEP : zoom / ZOOM_STEP);
+            }
+        });
+        addEventHandler(MouseEvent.MOUSE_PRESSED, new EventHandler<MouseEvent>() {
+
+            @Override
+            public void handle(MouseEvent e) {
+                dragX = e.getX();
+                dragY = e.getY();
+            }
+        });
+        addEventHandler(MouseEvent.MOUSE_DRAGGED, new EventHandler<MouseEvent>() {
+
+            @Override
+            public void handle(MouseEvent e) {
+                if (!tiled) {
+                    return;
+                }
+                offsetX -= (e.getX() - dragX) / zoom;
+                offsetY -= (e.getY() - dragY) / zoom;
+                dragX = e.getX();
+                dragY = e.getY();
+                requestLayout();
+            }
+        });
+    }
+
+    /**
+     * Zooms keeping the source pixel under x, y in place.
+     */
+    private void zoomAt(double x, double y, double newZoom) {
+        double fit = getFitZoom();
+        newZoom = Math.max(fit, Math.min(MAX_ZOOM, newZoom));
+        double sourceX = offsetX + x / zoom;
+        double sourceY = offsetY + y / zoom;
+        zoom = newZoom;
+        fitted = newZoom <= fit;
+        offsetX = sourceX - x / zoom;
+        offsetY = sourceY - y / zoom;
+        requestLayout();
+    }
+
+    private double getFitZoom() {
+        return Math.min(1, Math.min(getWidth() / sourceWidth, getHeight() / sourceHeight));
+    }
+
+    /**
+     * Opens the reader for tiles and, unless a fitted image was given, reads
+     * the image subsampled to fit width x height.
+     */
+    private void loadBase(final double width, final double height, final FittedImage fitted) {
+        decoder.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                FittedImage base = null;
+                try {
+                    input = ImageIO.createImageInputStream(file);
+                    reader = createReader(input);
+                    if (fitted == null) {
+                        base = reader != null ? readFitted(reader, width, height) : readFitted(file, width, height);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    logger.log(Level.WARNING, "Unable to read " + file, ex);
+                    disposeReader();
+                }
+                final FittedImage loaded = base;
+                Platform.runLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (loaded != null) {
+                            showBase(loaded);
+                        } else if (fitted == null) {
+                            loadingLabel.setText("Unable to show " + file.getName());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void showBase(FittedImage base) {
+        if (closed) {
+            return;
+        }
+        sourceWidth = base.sourceWidth;
+        sourceHeight = base.sourceHeight;
+        baseSubsampling = base.subsampling;
+        tiled = base.tiled;
+        getChildren().remove(loadingLabel);
+        baseView.setImage(base.image);
+        requestLayout();
+    }
+
+    /**
+     * Reads an image subsampled to fit width x height on the calling thread,
+     * the way the viewer reads it before showing it.
+     * @param file The image file.
+     * @param width The width of the viewer.
+     * @param height The height of the viewer.
+     * @return The image.
+     * @throws IOException If the image could not be read.
+     */
+    public static FittedImage readFitted(File file, double width, double height) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = createReader(input);
+            if (reader == null) {
+                // decoded at full size by JavaFX and scaled while loading
+                Image image = new Image(file.toURI().toString(), width, height, true, true);
+                if (image.isError()) {
+                    throw new IOException("Unable to decode " + file, image.getException());
+                }
+                return new FittedImage(image, (int) image.getWidth(), (int) image.getHeight(), 1, false);
+            }
+            try {
+                return readFitted(reader, width, height);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static FittedImage readFitted(ImageReader reader, double width, double height) throws IOException {
+        int w = reader.getWidth(0);
+        int h = reader.getHeight(0);
+        double fit = Math.min(1, Math.min(width / w, height / h));
+        int subsampling = Math.max(1, (int) Math.floor(1 / fit));
+        return new FittedImage(read(reader, null, subsampling), w, h, subsampling, true);
+    }
+
+    private static ImageReader createReader(ImageInputStream input) {
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    private void disposeReader() {
+        if (reader != null) {
+            reader.dispose();
+            reader = null;
+        }
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Unable to close " + file, ex);
+            }
+            input = null;
+        }
+    }
+
+    /**
+     * Reads a region of the image, or the whole image if region is null.
+     */
+    private static Image read(ImageReader reader, java.awt.Rectangle region, int subsampling) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (region != null) {
+            param.setSourceRegion(region);
+        }
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage image = reader.read(0, param);
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, w, h, null, 0, w);
+        WritableImage fxImage = new WritableImage(w, h);
+        fxImage.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+        return fxImage;
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double w = getWidth();
+        double h = getHeight();
+        loadingLabel.autosize();
+        loadingLabel.relocate((w - loadingLabel.getWidth()) / 2, (h - loadingLabel.getHeight()) / 2);
+        if (w <= 0 || h <= 0 || sourceWidth == 0 || sourceHeight == 0) {
+            return;
+        }
+        double fit = getFitZoom();
+        if (fitted || zoom < fit) {
+            zoom = fit;
+        }
+        double viewWidth = w / zoom;
+        double viewHeight = h / zoom;
+        // center an image smaller than the viewer, otherwise keep it covering the viewer
+        offsetX = sourceWidth <= viewWidth ? (sourceWidth - viewWidth) / 2 : Math.max(0, Math.min(offsetX, sourceWidth - viewWidth));
+        offsetY = sourceHeight <= viewHeight ? (sourceHeight - viewHeight) / 2 : Math.max(0, Math.min(offsetY, sourceHeight - viewHeight));
+        double x0 = -offsetX * zoom;
+        double y0 = -offsetY * zoom;
+        baseView.relocate(x0, y0);
+        baseView.setFitWidth(sourceWidth * zoom);
+        baseView.setFitHeight(sourceHeight * zoom);
+        layoutTiles(x0, y0, viewWidth, viewHeight);
+    }
+
+    /**
+     * Shows the cached visible tiles of the level matching the zoom and
+     * requests the missing ones.
+     */
+    private void layoutTiles(double x0, double y0, double viewWidth, double viewHeight) {
+        tileLayer.getChildren().clear();
+        Set<Long> visible = new HashSet<>();
+        int level = 0;
+        while ((1 << (level + 1)) <= 1 / zoom) {
+            level++;
+        }
+        int subsampling = 1 << level;
+        if (tiled && !closed && subsampling < baseSubsampling) {
+            // source pixels covered by a tile
+            int span = TILE_SIZE * subsampling;
+            int firstX = (int) (offsetX / span);
+            int firstY = (int) (offsetY / span);
+            int lastX = (int) Math.min((offsetX + viewWidth) / span, (sourceWidth - 1) / span);
+            int lastY = (int) Math.min((offsetY + viewHeight) / span, (sourceHeight - 1) / span);
+            for (int ty = firstY; ty <= lastY; ty++) {
+                for (int tx = firstX; tx <= lastX; tx++) {
+                    long key = tileKey(level, tx, ty);
+                    visible.add(key);
+                    Image tile = tiles.get(key);
+                    if (tile == null) {
+                        if (pendingTiles.add(key)) {
+                            loadTile(key, new java.awt.Rectangle(tx * span, ty * span,
+                                    Math.min(span, sourceWidth - tx * span), Math.min(span, sourceHeight - ty * span)), subsampling);
+                        }
+                        continue;
+                    }
+                    ImageView view = new ImageView(tile);
+                    view.setSmooth(true);
+                    view.relocate(x0 + tx * span * zoom, y0 + ty * span * zoom);
+                    view.setFitWidth(Math.min(span, sourceWidth - tx * span) * zoom);
+                    view.setFitHeight(Math.min(span, sourceHeight - ty * span) * zoom);
+                    tileLayer.getChildren().add(view);
+                }
+            }
+        }
+        visibleTiles = visible;
+    }
+
+    private static long tileKey(int level, int tx, int ty) {
+        return ((long) level << 56) | ((long) tx << 28) | ty;
+    }
+
+    private void loadTile(final long key, final java.awt.Rectangle region, final int subsampling) {
+        decoder.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Image tile = null;
+                // skip tiles scrolled or zoomed away from while queued
+                if (!closed && reader != null && visibleTiles.contains(key)) {
+                    try {
+                        tile = read(reader, region, subsampling);
+                    } catch (IOException | RuntimeException ex) {
+                        logger.log(Level.WARNING, "Unable to read a tile of " + file, ex);
+                    }
+                }
+                final Image loaded = tile;
+                Platform.runLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        pendingTiles.remove(key);
+                        if (loaded != null && !closed) {
+                            putTile(key, loaded);
+                            requestLayout();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void putTile(long key, Image tile) {
+        tiles.put(key, tile);
+        tileBytes += bytes(tile);
+        Iterator<Map.Entry<Long, Image>> it = tiles.entrySet().iterator();
+        while (tileBytes > MAX_TILE_BYTES && it.hasNext()) {
+            Map.Entry<Long, Image> eldest = it.next();
+            if (eldest.getKey() == key) {
+                break;
+            }
+            tileBytes -= bytes(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytes(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    /**
+     * An image subsampled to fit a size, with the size of its source.
+     */
+    public static class FittedImage {
+
+        private final Image image;
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final int subsampling;
+        // false if there is no ImageIO reader to read tiles with
+        private final boolean tiled;
+
+        FittedImage(Image image, int sourceWidth, int sourceHeight, int subsampling, boolean tiled) {
+            this.image = image;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.subsampling = subsampling;
+            this.tiled = tiled;
+        }
+
+        public Image getImage() {
+            return image;
+        }
+
+        /**
+         * @return The bytes held by the decoded pixels.
+         */
+        public long getByteCount() {
+            return bytes(image);
+        }
+    }
+}
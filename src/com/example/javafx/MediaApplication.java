@@ -2,25 +2,33 @@ package com.example.javafx;
 
 import com.example.media.*;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javafx.animation.Interpolator;
 import javafx.animation.KeyFrame;
 import javafx.animation.KeyValue;
 import javafx.animation.TimelineBuilder;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.DepthTest;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.StackPane;
-import javafx.scene.layout.TilePane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
@@ -32,17 +40,34 @@ public class MediaApplication extends Application {
 
     private VBox metaBox = new VBox();
     private StackPane modalDimmer = new StackPane();
-    public File selectedFile = null;
-    public final VBox vbox = new VBox(8) {
-        // stretch to allways fill height of scrollpane
+    private final MediaIndex mediaIndex = new MediaIndex(MediaIndex.getDefaultLocation());
+    private final MetaDataManager metaData = new MetaDataManager(MetaDataManager.getDefaultLocation());
+    private final DirectoryTreeModel directoryTree = new DirectoryTreeModel();
+    private final MediaPlayerManager players = new MediaPlayerManager();
+    private final ThumbnailCache thumbnailCache = new ThumbnailCache(ThumbnailCache.getDefaultLocation(), MediaItemButton.iconSize, 64L * 1024 * 1024, 256L * 1024 * 1024, players);
+    private final ImagePrefetcher imagePrefetcher = new ImagePrefetcher(128L * 1024 * 1024);
+    private static final int FIRST_PAGE_SIZE = 100;
+    private static final int BATCH_SIZE = 200;
+    // directory listing and thumbnail decoding happen on these daemon threads
+    private final ExecutorService loader = Executors.newFixedThreadPool(2, new ThreadFactory() {
 
         @Override
-        protected double computePrefHeight(double width) {
-            return Math.max(
-                    super.computePrefHeight(width),
-                    getParent().getBoundsInLocal().getHeight());
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "media-loader");
+            t.setDaemon(true);
+            return t;
         }
-    };
+    });
+    private static final MediaType[] SHOWN_TYPES = {MediaType.IMAGE, MediaType.FLASH_VIDEO, MediaType.MP4_VIDEO};
+    private DirectoryLoadTask currentLoad = null;
+    // the fields below are only used on the JavaFX Application Thread
+    private FileMediaManager watchedManager = null;
+    private Label pageHeader;
+    private int picCount = 0;
+    private int vidCount = 0;
+    public File selectedFile = null;
+    public final VBox vbox = new VBox(8);
+    private MediaGridView grid;
 
     /**
      * @param args the command line arguments
@@ -69,26 +94,17 @@ public class MediaApplication extends Application {
 
         primaryStage.setTitle("Media Viewer");
         vbox.getStyleClass().add("category-page");
+        grid = new MediaGridView(metaBox, modalDimmer, thumbnailCache, imagePrefetcher, players);
+        VBox.setVgrow(grid, Priority.ALWAYS);
 
         File startingDir = new File(System.getProperty("user.home") + "/Desktop");
-        try {
-            if (startingDir.exists() && startingDir.isDirectory()) {
-                fillContentBox(startingDir);
-            } else {
-                fillContentBox(new File(System.getProperty("user.home")));
-            }
-        } catch (FileNotFoundException ex) {
-            System.err.println("Error reading the starting dir");
+        if (startingDir.exists() && startingDir.isDirectory()) {
+            fillContentBox(startingDir);
+        } else {
+            fillContentBox(new File(System.getProperty("user.home")));
         }
 
 
-        ScrollPane scrollPane = new ScrollPane();
-        scrollPane.getStyleClass().add("noborder-scroll-pane");
-        scrollPane.setFitToWidth(true);
-
-        scrollPane.setContent(vbox);
-
-
         BorderPane borderPaneLayer = new BorderPane();
 
         borderPaneLayer.setBottom(metaBox);
@@ -97,7 +113,7 @@ public class MediaApplication extends Application {
         StackPane sp1 = new StackPane();
         sp1.getChildren().add(buildFileSystemBrowser());
         StackPane sp2 = new StackPane();
-        sp2.getChildren().add(scrollPane);
+        sp2.getChildren().add(vbox);
         sp.getItems().addAll(sp1, sp2);
         sp.setDividerPositions(0.3f, 0.6f);
 
@@ -121,30 +137,56 @@ public class MediaApplication extends Application {
         primaryStage.show();
     }
 
-    public void fillContentBox(File dir) throws FileNotFoundException {
-        MediaManager mm;
-        try {
-            mm = new FileMediaManager(dir, FileMediaManager.IdFormat.FX);
-        } catch (IllegalArgumentException iae) {
-            return;
+    @Override
+    public void stop() {
+        loader.shutdownNow();
+        directoryTree.shutdown();
+        if (watchedManager != null) {
+            watchedManager.stopWatching();
         }
-        List<MediaGroup> mediaGroups = mm
-                .listMediaItems(new MediaQualifier()
-                .setTypes(MediaType.IMAGE, MediaType.FLASH_VIDEO, MediaType.MP4_VIDEO)
-                .setSortOrder(MediaOrder.DATE_DESC));
+        thumbnailCache.shutdown();
+        imagePrefetcher.shutdown();
+        players.shutdown();
+        metaData.close();
+    }
 
-        vbox.getChildren().clear();
+    /**
+     * Shows the media in dir. The directory is listed on the loader pool and
+     * the items are added to the grid in batches. Any load still in flight 
+     * for a previously selected directory is cancelled.
+     */
+    public void fillContentBox(File dir) {
+        fillContentBox(dir, null);
+    }
 
-        int picCount = 0;
-        int vidCount = 0;
+    /**
+     * Shows the media in dir and keeps the page and the children of treeItem
+     * up to date with changes to the directory while it is shown.
+     * @param dir The directory to show.
+     * @param treeItem The TreeItem of dir in the directory tree or null.
+     */
+    public void fillContentBox(File dir, TreeItem<File> treeItem) {
+        if (currentLoad != null) {
+            currentLoad.cancel(true);
+        }
+        if (watchedManager != null) {
+            watchedManager.stopWatching();
+            watchedManager = null;
+        }
+
+        vbox.getChildren().clear();
+        grid.clear();
+        players.disposePreopened();
 
         // create header
         //Label header = new Label(getName());
-        Label header = new Label("0 Videos, 0 Pictures");
-        header.setMaxWidth(Double.MAX_VALUE);
-        header.setMinHeight(Control.USE_PREF_SIZE); // Workaround for RT-14251
-        header.getStyleClass().add("page-header");
-        vbox.getChildren().add(header);
+        pageHeader = new Label("0 Videos, 0 Pictures");
+        pageHeader.setMaxWidth(Double.MAX_VALUE);
+        pageHeader.setMinHeight(Control.USE_PREF_SIZE); // Workaround for RT-14251
+        pageHeader.getStyleClass().add("page-header");
+        vbox.getChildren().add(pageHeader);
+        picCount = 0;
+        vidCount = 0;
 
         Label categorySubHeader = new Label(dir.getAbsolutePath());
         categorySubHeader.setMaxWidth(Double.MAX_VALUE);
@@ -152,44 +194,311 @@ public class MediaApplication extends Application {
         categorySubHeader.getStyleClass().add("page-subheader");
         vbox.getChildren().add(categorySubHeader);
 
-        if (mediaGroups.size() > 0) {
-            for (MediaGroup group : mediaGroups) {
-                Label categoryHeader = new Label(group.getTitle());
-                categoryHeader.setMaxWidth(Double.MAX_VALUE);
-                categoryHeader.setMinHeight(Control.USE_PREF_SIZE); // Workaround for RT-14251
-                categoryHeader.getStyleClass().add("category-header");
-                vbox.getChildren().add(categoryHeader);
-                // add direct children
-                TilePane tiles = new TilePane(8, 8);
-                tiles.setPrefColumns(1);
-                tiles.getStyleClass().add("category-page-flow");
-                vbox.getChildren().add(tiles);
+        vbox.getChildren().add(grid);
+
+        currentLoad = new DirectoryLoadTask(dir, treeItem);
+        loader.execute(currentLoad);
+    }
+
+    private static boolean isShown(MediaType type) {
+        return Arrays.asList(SHOWN_TYPES).contains(type);
+    }
+
+    private void countItem(MediaType type, int delta) {
+        switch (type) {
+            case FLASH_VIDEO:
+            case MP4_VIDEO:
+                vidCount += delta;
+                break;
+            case IMAGE:
+                picCount += delta;
+                break;
+        }
+    }
+
+    private void updatePageHeader() {
+        String vidCntStr = vidCount == 1 ? "1 Video, " : vidCount + " Videos, ";
+        String picCntStr = picCount == 1 ? "1 Picture" : picCount + " Pictures";
+        pageHeader.setText(vidCntStr + picCntStr);
+    }
+
+    /**
+     * Lists a directory off the JavaFX Application Thread. The first page is 
+     * listed with a bounded top-K query so it shows quickly, the remaining 
+     * items follow in batches. Thumbnails are only decoded by the grid cells
+     * that become visible. The directory is watched from before the first
+     * page is listed.
+     */
+    private class DirectoryLoadTask extends Task<Void> {
+
+        private final File dir;
+        private final TreeItem<File> treeItem;
+
+        DirectoryLoadTask(File dir, TreeItem<File> treeItem) {
+            this.dir = dir;
+            this.treeItem = treeItem;
+        }
+
+        @Override
+        protected Void call() throws Exception {
+            FileMediaManager mm;
+            try {
+                mm = new FileMediaManager(dir, FileMediaManager.IdFormat.FX, mediaIndex, metaData);
+            } catch (IllegalArgumentException iae) {
+                return null;
+            }
+            mm.addMediaItemListener(thumbnailCache);
+            mm.addMediaItemListener(imagePrefetcher);
+            watch(mm);
+            MediaQualifier qualifier = new MediaQualifier()
+                    .setTypes(SHOWN_TYPES)
+                    .setSortOrder(grid.getMediaOrder());
+
+            MediaPage firstPage = mm.listMediaItems(qualifier, FIRST_PAGE_SIZE, null);
+            Set<String> shown = new HashSet<>();
+            MediaItem lastShown = null;
+            for (MediaGroup group : firstPage.getGroups()) {
+                for (MediaItem mediaItem : group.getItems()) {
+                    shown.add(mediaItem.getId());
+                    lastShown = mediaItem;
+                }
+            }
+            publish(firstPage.getGroups());
+            if (!firstPage.hasMore() || isCancelled()) {
+                return null;
+            }
+
+            // the full listing uses the same order, skip what is already shown
+            // and insert the items created since the first page in place
+            Comparator<MediaItem> order = qualifier.getSortOrder().getComparator();
+            List<MediaItem> created = new ArrayList<>();
+            List<MediaGroup> batch = new ArrayList<>();
+            int batchSize = 0;
+            for (MediaGroup group : mm.listMediaItems(qualifier)) {
+                MediaGroup part = new MediaGroup(group.getTitle());
                 for (MediaItem mediaItem : group.getItems()) {
-                    try {
-                        switch (mediaItem.getType()) {
-                            case FLASH_VIDEO:
-                            case MP4_VIDEO:
-                                vidCount++;
-                                break;
-                            case IMAGE:
-                                picCount++;
-                                break;
+                    if (shown.contains(mediaItem.getId())) {
+                        continue;
+                    }
+                    if (order.compare(mediaItem, lastShown) < 0) {
+                        created.add(mediaItem);
+                        continue;
+                    }
+                    part.getItems().add(mediaItem);
+                    if (++batchSize >= BATCH_SIZE) {
+                        batch.add(part);
+                        publish(batch);
+                        part = new MediaGroup(group.getTitle());
+                        batch = new ArrayList<>();
+                        batchSize = 0;
+                    }
+                }
+                if (!part.getItems().isEmpty()) {
+                    batch.add(part);
+                }
+                if (isCancelled()) {
+                    return null;
+                }
+            }
+            publish(batch);
+            insert(created);
+            return null;
+        }
+
+        /**
+         * Starts watching before the directory is listed, so no change made
+         * while it is listed is missed.
+         */
+        private void watch(final FileMediaManager mm) {
+            WatchListener watchListener = new WatchListener(mm, treeItem);
+            mm.addMediaItemListener(watchListener);
+            mm.addDirectoryChangeListener(watchListener);
+            // queued ahead of the change events, which only apply once mm is watchedManager
+            Platform.runLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (currentLoad == DirectoryLoadTask.this) {
+                        watchedManager = mm;
+                    } else {
+                        mm.stopWatching();
+                    }
+                }
+            });
+            try {
+                mm.startWatching();
+            } catch (IOException ex) {
+                System.err.println("Unable to watch " + dir.getAbsolutePath() + " for changes");
+            }
+        }
+
+        private void insert(final List<MediaItem> items) {
+            if (items.isEmpty() || isCancelled()) {
+                return;
+            }
+            Platform.runLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        for (MediaItem mediaItem : items) {
+                            if (!grid.contains(mediaItem.getId())) {
+                                countItem(mediaItem.getType(), 1);
+                            }
+                            grid.insertItem(mediaItem);
                         }
-                        MediaItemButton mediaItemButton = new MediaItemButton(mediaItem, metaBox, modalDimmer);
-                        tiles.getChildren().add(mediaItemButton);
-                        String vidCntStr = vidCount == 1 ? "1 Video, " : vidCount + " Videos, ";
-                        String picCntStr = picCount == 1 ? "1 Picture" : picCount + " Pictures";
-                        header.setText(vidCntStr + picCntStr);
-                    } catch (Exception io) {
-                        // Failed to build button, skip adding
+                        updatePageHeader();
                     }
                 }
+            });
+        }
+
+        private void publish(final List<MediaGroup> batch) {
+            if (batch.isEmpty() || isCancelled()) {
+                return;
             }
-        } else {
-            TilePane tiles = new TilePane(8, 8);
-            tiles.setPrefColumns(1);
-            tiles.getStyleClass().add("category-page-flow");
-            vbox.getChildren().add(tiles);
+            Platform.runLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    // a newer selection cancels this task before it starts
+                    if (!isCancelled()) {
+                        for (MediaGroup group : batch) {
+                            showGroup(group);
+                        }
+                    }
+                }
+            });
+        }
+
+        private void showGroup(MediaGroup group) {
+            for (MediaItem mediaItem : group.getItems()) {
+                if (!grid.contains(mediaItem.getId())) {
+                    countItem(mediaItem.getType(), 1);
+                }
+            }
+            grid.addItems(group.getTitle(), group.getItems());
+            updatePageHeader();
+        }
+
+        @Override
+        protected void failed() {
+            System.err.println("Error filling content box with items in " + dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Applies the changes reported by the watched FileMediaManager to the grid
+     * and the directory tree, on the JavaFX Application Thread. Changes from
+     * a manager that is no longer watched are ignored.
+     */
+    private class WatchListener implements MediaItemListener, DirectoryChangeListener {
+
+        private final FileMediaManager manager;
+        private final TreeItem<File> treeItem;
+
+        WatchListener(FileMediaManager manager, TreeItem<File> treeItem) {
+            this.manager = manager;
+            this.treeItem = treeItem;
+        }
+
+        private void runIfWatched(final Runnable change) {
+            Platform.runLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (watchedManager == manager) {
+                        change.run();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void mediaItemCreated(final MediaItem item) {
+            mediaItemUpdated(item);
+        }
+
+        @Override
+        public void mediaItemUpdated(final MediaItem item) {
+            if (!isShown(item.getType())) {
+                return;
+            }
+            runIfWatched(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!grid.contains(item.getId())) {
+                        countItem(item.getType(), 1);
+                    }
+                    grid.insertItem(item);
+                    updatePageHeader();
+                }
+            });
+        }
+
+        @Override
+        public void mediaItemDeleted(final String id) {
+            runIfWatched(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (grid.contains(id)) {
+                        countItem(MediaType.forName(id), -1);
+                        grid.removeItem(id);
+                        updatePageHeader();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void directoryCreated(final File dir) {
+            runIfWatched(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (treeItem != null && findChild(dir) == null) {
+                        treeItem.getChildren().add(createNode(dir));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void directoryDeleted(final File dir) {
+            runIfWatched(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (treeItem != null) {
+                        TreeItem<File> child = findChild(dir);
+                        if (child != null) {
+                            treeItem.getChildren().remove(child);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void changesLost(final File dir) {
+            runIfWatched(new Runnable() {
+
+                @Override
+                public void run() {
+                    fillContentBox(dir, treeItem);
+                }
+            });
+        }
+
+        private TreeItem<File> findChild(File dir) {
+            for (TreeItem<File> child : treeItem.getChildren()) {
+                if (dir.equals(child.getValue())) {
+                    return child;
+                }
+            }
+            return null;
         }
     }
 
@@ -213,16 +522,14 @@ public class MediaApplication extends Application {
 
             @Override
             public void changed(ObservableValue<? extends TreeItem<File>> observable, TreeItem<File> oldValue, TreeItem<File> newValue) {
-                if (view.getSelectionModel().getSelectedItem() != null) {
-                    File selectedDir = view.getSelectionModel().getSelectedItem().getValue();
+                // an item without a value is a loading placeholder
+                if (newValue != null && newValue.getValue() != null) {
+                    TreeItem<File> selectedItem = view.getSelectionModel().getSelectedItem();
+                    File selectedDir = selectedItem.getValue();
                     ((Text) metaBox.getChildren().get(0)).setText("Name:");
                     ((Text) metaBox.getChildren().get(1)).setText("Date:");
                     ((Text) metaBox.getChildren().get(2)).setText("Type:");
-                    try {
-                        fillContentBox(selectedDir);
-                    } catch (FileNotFoundException ex) {
-                        System.err.println("Error filling content box with items in " + selectedDir.getAbsolutePath());
-                    }
+                    fillContentBox(selectedDir, selectedItem);
                 }
             }
         });
@@ -240,88 +547,20 @@ public class MediaApplication extends Application {
         protected void updateItem(File file, boolean empty) {
             // calling super here is very important - don't skip this!
             super.updateItem(file, empty);
-            setText(file == null ? "" : file.getParent() == null ? file.toString() : file.getName());
+            if (empty) {
+                setText("");
+            } else {
+                setText(file == null ? "Loading..." : file.getParent() == null ? file.toString() : file.getName());
+            }
         }
     }
 
-    // This method creates a TreeItem to represent the given File. It does this
-    // by overriding the TreeItem.getChildren() and TreeItem.isLeaf() methods 
-    // anonymously, but this could be better abstracted by creating a 
-    // 'FileTreeItem' subclass of TreeItem. However, this is left as an exercise
-    // for the reader.
+    /**
+     * @param f A directory.
+     * @return A TreeItem listing the subdirectories of f in the background.
+     */
     public TreeItem<File> createNode(final File f) {
-        return new TreeItem<File>(f) {
-
-            // We cache whether the File is a leaf or not. A File is a leaf if
-            // it is not a directory and does not have any files contained within
-            // it. We cache this as isLeaf() is called often, and doing the 
-            // actual check on File is expensive.
-            private boolean isLeaf;
-            // We do the children and leaf testing only once, and then set these
-            // booleans to false so that we do not check again during this
-            // run. A more complete implementation may need to handle more 
-            // dynamic file system situations (such as where a folder has files
-            // added after the TreeView is shown). Again, this is left as an
-            // exercise for the reader.
-            private boolean isFirstTimeChildren = true;
-            private boolean isFirstTimeLeaf = true;
-
-            @Override
-            public ObservableList<TreeItem<File>> getChildren() {
-                if (isFirstTimeChildren) {
-                    isFirstTimeChildren = false;
-
-                    // First getChildren() call, so we actually go off and 
-                    // determine the children of the File contained in this TreeItem.
-                    super.getChildren().setAll(buildChildren(this));
-                }
-                return super.getChildren();
-            }
-
-            @Override
-            public boolean isLeaf() {
-                if (isFirstTimeLeaf) {
-                    isFirstTimeLeaf = false;
-                    File f = (File) getValue();
-                    if (f != null && f.isDirectory()) {
-                        File[] files = f.listFiles();
-                        if (files != null) {
-                            for (File childFile : files) {
-                                if (childFile.isDirectory()) {
-                                    isLeaf = false;
-                                    return isLeaf;
-                                }
-                            }
-                        }
-                    }
-                    isLeaf = true;
-                }
-
-                return isLeaf;
-            }
-
-            private ObservableList<TreeItem<File>> buildChildren(TreeItem<File> TreeItem) {
-                File f = TreeItem.getValue();
-                if (f != null && f.isDirectory()) {
-                    File[] files = f.listFiles();
-                    if (files != null) {
-                        ObservableList<TreeItem<File>> children = FXCollections.observableArrayList();
-
-                        final ListView<TreeItem<File>> listView = new ListView<>(children);
-
-                        for (File childFile : files) {
-                            if (childFile.isDirectory()) {
-                                children.add(createNode(childFile));
-                            }
-                        }
-
-                        return children;
-                    }
-                }
-
-                return FXCollections.emptyObservableList();
-            }
-        };
+        return directoryTree.createNode(f);
     }
 
     /**
@@ -0,0 +1,263 @@
+package com.example.javafx;
+
+import com.example.media.MediaGroup;
+import com.example.media.MediaItem;
+import com.example.media.MediaType;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import javafx.animation.Interpolator;
+import javafx.animation.KeyFrame;
+import javafx.animation.KeyValue;
+import javafx.animation.TimelineBuilder;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.Button;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.StackPane;
+import javafx.util.Duration;
+
+/**
+ * Shows the items of a MediaGridView one at a time over the application, in
+ * the order of the grid. The left and right keys or the arrow buttons step
+ * to the previous and next item, escape or a click on an image closes it.
+ * The PREFETCH_DISTANCE images on either side of the shown item are read
+ * ahead by an ImagePrefetcher so stepping to them shows them at once, and
+ * the next video within that distance has its player opened ahead.
+ */
+public class MediaBrowser {
+
+    public static final int PREFETCH_DISTANCE = 3;
+    private final MediaGridView grid;
+    private final StackPane modalDimmer;
+    private final ImagePrefetcher prefetcher;
+    private final MediaPlayerManager players;
+    private final StackPane content = new StackPane();
+    private final Button previousButton = new Button("<");
+    private final Button nextButton = new Button(">");
+    // the items of the grid when it was opened
+    private List<MediaItem> items = new ArrayList<>();
+    private int index = 0;
+    private boolean open = false;
+    private ImageViewer viewer = null;
+    private FXPlayer player = null;
+
+    public MediaBrowser(MediaGridView grid, StackPane modalDimmer, ImagePrefetcher prefetcher, MediaPlayerManager players) {
+        this.grid = grid;
+        this.modalDimmer = modalDimmer;
+        this.prefetcher = prefetcher;
+        this.players = players;
+        StackPane.setAlignment(previousButton, Pos.CENTER_LEFT);
+        StackPane.setAlignment(nextButton, Pos.CENTER_RIGHT);
+        previousButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            @Override
+            public void handle(ActionEvent e) {
+                step(-1);
+            }
+        });
+        nextButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            @Override
+            public void handle(ActionEvent e) {
+                step(1);
+            }
+        });
+        EventHandler<MouseEvent> consumeClick = new EventHandler<MouseEvent>() {
+
+            @Override
+            public void handle(MouseEvent e) {
+                e.consume();
+            }
+        };
+        previousButton.addEventHandler(MouseEvent.MOUSE_CLICKED, consumeClick);
+        nextButton.addEventHandler(MouseEvent.MOUSE_CLICKED, consumeClick);
+        initHandlers();
+    }
+
+    private void initHandlers() {
+        modalDimmer.addEventHandler(KeyEvent.KEY_PRESSED, new EventHandler<KeyEvent>() {
+
+            @Override
+            public void handle(KeyEvent e) {
+                if (!open) {
+                    return;
+                }
+                switch (e.getCode()) {
+                    case LEFT:
+                        step(-1);
+                        break;
+                    case RIGHT:
+                        step(1);
+                        break;
+                    case ESCAPE:
+                        close();
+                        break;
+                    default:
+                        return;
+                }
+                e.consume();
+            }
+        });
+        modalDimmer.addEventHandler(MouseEvent.MOUSE_CLICKED, new EventHandler<MouseEvent>() {
+
+            @Override
+            public void handle(MouseEvent e) {
+                // videos are closed with their close button, a drag pans an image
+                if (open && viewer != null && e.isStillSincePress()) {
+                    e.consume();
+                    close();
+                }
+            }
+        });
+        modalDimmer.visibleProperty().addListener(new ChangeListener<Boolean>() {
+
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
+                if (!newValue && open) {
+                    // closed by the FXPlayer close button
+                    open = false;
+                    disposeCurrent();
+                    players.disposePreopened();
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows an item of the grid.
+     * @param mediaItem The item to show first.
+     */
+    public void open(MediaItem mediaItem) {
+        items = new ArrayList<>();
+        for (MediaGroup group : grid.getGroups()) {
+            for (MediaItem item : group.getItems()) {
+                if (isShown(item)) {
+                    items.add(item);
+                }
+            }
+        }
+        int first = items.indexOf(mediaItem);
+        if (first < 0) {
+            return;
+        }
+        open = true;
+        show(first);
+        modalDimmer.getChildren().setAll(content);
+        modalDimmer.setOpacity(0);
+        modalDimmer.setVisible(true);
+        modalDimmer.setCache(true);
+        modalDimmer.requestFocus();
+        TimelineBuilder.create().keyFrames(
+                new KeyFrame(Duration.seconds(1),
+                new EventHandler<ActionEvent>() {
+
+                    @Override
+                    public void handle(ActionEvent t) {
+                        modalDimmer.setCache(false);
+                    }
+                },
+                new KeyValue(modalDimmer.opacityProperty(), 1, Interpolator.EASE_BOTH))).build().play();
+    }
+
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        disposeCurrent();
+        players.disposePreopened();
+        modalDimmer.setCache(true);
+        TimelineBuilder.create().keyFrames(
+                new KeyFrame(Duration.seconds(1),
+                new EventHandler<ActionEvent>() {
+
+                    @Override
+                    public void handle(ActionEvent t) {
+                        modalDimmer.setCache(false);
+                        if (!open) {
+                            modalDimmer.setVisible(false);
+                            modalDimmer.getChildren().clear();
+                        }
+                    }
+                },
+                new KeyValue(modalDimmer.opacityProperty(), 0, Interpolator.EASE_BOTH))).build().play();
+    }
+
+    private static boolean isShown(MediaItem mediaItem) {
+        switch (mediaItem.getType()) {
+            case IMAGE:
+            case FLASH_VIDEO:
+            case MP4_VIDEO:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void step(int delta) {
+        int next = index + delta;
+        if (open && next >= 0 && next < items.size()) {
+            show(next);
+        }
+    }
+
+    private void show(int newIndex) {
+        disposeCurrent();
+        index = newIndex;
+        MediaItem mediaItem = items.get(index);
+        grid.selectedMediaItemProperty().set(mediaItem);
+        double width = modalDimmer.getWidth() - 30;
+        double height = modalDimmer.getHeight() - 30;
+        Node node;
+        if (mediaItem.getType() == MediaType.IMAGE) {
+            viewer = new ImageViewer(new File(mediaItem.getId()), width, height, prefetcher.get(mediaItem.getId(), width, height));
+            node = viewer;
+        } else {
+            player = new FXPlayer(mediaItem.getId(), modalDimmer, players);
+            node = player;
+        }
+        content.getChildren().setAll(node, previousButton, nextButton);
+        previousButton.setDisable(index == 0);
+        nextButton.setDisable(index == items.size() - 1);
+        prefetchNeighbors(width, height);
+    }
+
+    /**
+     * Prefetches the images around the shown item, nearest first and the
+     * next before the previous one, and opens the next video.
+     */
+    private void prefetchNeighbors(double width, double height) {
+        List<String> paths = new ArrayList<>(2 * PREFETCH_DISTANCE);
+        for (int distance = 1; distance <= PREFETCH_DISTANCE; distance++) {
+            for (int neighbor : new int[]{index + distance, index - distance}) {
+                if (neighbor >= 0 && neighbor < items.size() && items.get(neighbor).getType() == MediaType.IMAGE) {
+                    paths.add(items.get(neighbor).getId());
+                }
+            }
+        }
+        prefetcher.prefetch(paths, width, height);
+        for (int next = index + 1; next < items.size() && next <= index + PREFETCH_DISTANCE; next++) {
+            if (items.get(next).getType() != MediaType.IMAGE) {
+                players.preopen(items.get(next).getId());
+                break;
+            }
+        }
+    }
+
+    private void disposeCurrent() {
+        if (viewer != null) {
+            viewer.close();
+            viewer = null;
+        }
+        if (player != null) {
+            player.dispose();
+            player = null;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.example.javafx;
+
+import com.example.media.MediaGroup;
+import com.example.media.MediaItem;
+import com.example.media.MediaOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.scene.control.Control;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import javafx.util.Callback;
+
+/**
+ * A virtualized grid of MediaItems. Each MediaGroup is laid out as a header
+ * row followed by rows of as many tiles as fit the width. Only the visible
+ * rows have cells, and cells reuse their MediaItemButtons when they are
+ * recycled, so the node count does not grow with the number of items.
+ */
+public class MediaGridView extends ListView<MediaGridView.Row> {
+
+    private static final double TILE_GAP = 8;
+    // room for the vertical scroll bar and cell padding
+    private static final double ROW_INSETS = 30;
+    private final VBox metaBox;
+    private final StackPane modalDimmer;
+    private final ThumbnailCache thumbnailCache;
+    private final MediaBrowser browser;
+    private final List<MediaGroup> groups = new ArrayList<>();
+    private final Map<String, MediaGroup> groupsById = new HashMap<>();
+    private MediaOrder mediaOrder = MediaOrder.DATE_DESC;
+    private final ObjectProperty<MediaItem> selectedMediaItem = new SimpleObjectProperty<>(this, "selectedMediaItem");
+    private int columns = 1;
+
+    public MediaGridView(VBox metaBox, StackPane modalDimmer, ThumbnailCache thumbnailCache, ImagePrefetcher imagePrefetcher, MediaPlayerManager players) {
+        this.metaBox = metaBox;
+        this.modalDimmer = modalDimmer;
+        this.thumbnailCache = thumbnailCache;
+        this.browser = new MediaBrowser(this, modalDimmer, imagePrefetcher, players);
+        getStyleClass().add("media-grid");
+        setCellFactory(new Callback<ListView<Row>, ListCell<Row>>() {
+
+            @Override
+            public ListCell<Row> call(ListView<Row> list) {
+                return new GridCell();
+            }
+        });
+        widthProperty().addListener(new InvalidationListener() {
+
+            @Override
+            public void invalidated(Observable o) {
+                int newColumns = computeColumns();
+                if (newColumns != columns) {
+                    columns = newColumns;
+                    rebuildRows();
+                }
+            }
+        });
+    }
+
+    public ObjectProperty<MediaItem> selectedMediaItemProperty() {
+        return selectedMediaItem;
+    }
+
+    /**
+     * @param mediaOrder The order the items are added in, used to place items
+     * inserted later on.
+     */
+    public void setMediaOrder(MediaOrder mediaOrder) {
+        this.mediaOrder = mediaOrder;
+    }
+
+    public MediaOrder getMediaOrder() {
+        return mediaOrder;
+    }
+
+    public boolean contains(String id) {
+        return groupsById.containsKey(id);
+    }
+
+    public List<MediaGroup> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Removes all groups and items.
+     */
+    public void clear() {
+        groups.clear();
+        groupsById.clear();
+        getItems().clear();
+        selectedMediaItem.set(null);
+        scrollTo(0);
+    }
+
+    /**
+     * Appends items to the grid. Items continue the last group when its title
+     * matches, otherwise a new group is started.
+     * @param groupTitle The title of the MediaGroup the items belong to.
+     * @param items The items in display order.
+     */
+    public void addItems(String groupTitle, List<MediaItem> items) {
+        if (!groupsById.isEmpty()) {
+            // drop items a change notification has already inserted
+            List<MediaItem> newItems = new ArrayList<>(items.size());
+            for (MediaItem mediaItem : items) {
+                if (!groupsById.containsKey(mediaItem.getId())) {
+                    newItems.add(mediaItem);
+                }
+            }
+            items = newItems;
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+        MediaGroup group = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+        if (group == null || !group.getTitle().equals(groupTitle)) {
+            group = new MediaGroup(groupTitle);
+            groups.add(group);
+            getItems().add(new Row(group, null));
+        }
+        int start = group.getItems().size();
+        group.getItems().addAll(items);
+        for (MediaItem mediaItem : items) {
+            groupsById.put(mediaItem.getId(), group);
+        }
+
+        List<Row> rows = getItems();
+        int i = start;
+        Row last = rows.get(rows.size() - 1);
+        if (last.items != null && last.items.size() < columns) {
+            // fill up the last row, replacing it so its cell is updated
+            int end = Math.min(group.getItems().size(), i + columns - last.items.size());
+            List<MediaItem> rowItems = new ArrayList<>(last.items);
+            rowItems.addAll(group.getItems().subList(i, end));
+            rows.set(rows.size() - 1, new Row(group, rowItems));
+            i = end;
+        }
+        List<Row> added = new ArrayList<>();
+        for (; i < group.getItems().size(); i += columns) {
+            int end = Math.min(group.getItems().size(), i + columns);
+            added.add(new Row(group, new ArrayList<>(group.getItems().subList(i, end))));
+        }
+        rows.addAll(added);
+    }
+
+    /**
+     * Inserts or replaces a single item at its place in the current order.
+     * Only the rows of the affected group are rebuilt.
+     * @param mediaItem The new or changed item.
+     */
+    public void insertItem(MediaItem mediaItem) {
+        if (groupsById.containsKey(mediaItem.getId())) {
+            removeItem(mediaItem.getId());
+        }
+        String title = mediaOrder.getGroupTitle(mediaItem);
+        MediaGroup group = null;
+        int groupIndex = groups.size();
+        for (int i = 0; i < groups.size(); i++) {
+            MediaGroup g = groups.get(i);
+            if (g.getTitle().equals(title)) {
+                group = g;
+                break;
+            }
+            if (mediaOrder.getComparator().compare(mediaItem, g.getItems().get(0)) < 0) {
+                groupIndex = i;
+                break;
+            }
+        }
+        if (group == null) {
+            group = new MediaGroup(title);
+            group.getItems().add(mediaItem);
+            groupsById.put(mediaItem.getId(), group);
+            int rowIndex = groupIndex < groups.size() ? findFirstRow(groups.get(groupIndex)) : getItems().size();
+            groups.add(groupIndex, group);
+            getItems().addAll(rowIndex, buildRows(group));
+            return;
+        }
+        int pos = Collections.binarySearch(group.getItems(), mediaItem, mediaOrder.getComparator());
+        group.getItems().add(pos < 0 ? -(pos + 1) : pos, mediaItem);
+        groupsById.put(mediaItem.getId(), group);
+        renderGroup(group);
+    }
+
+    /**
+     * Removes a single item, rebuilding only the rows of its group.
+     * @param id The id of the removed item.
+     */
+    public void removeItem(String id) {
+        MediaGroup group = groupsById.remove(id);
+        if (group == null) {
+            return;
+        }
+        MediaItem selected = selectedMediaItem.get();
+        if (selected != null && selected.getId().equals(id)) {
+            selectedMediaItem.set(null);
+        }
+        for (int i = 0; i < group.getItems().size(); i++) {
+            if (group.getItems().get(i).getId().equals(id)) {
+                group.getItems().remove(i);
+                break;
+            }
+        }
+        if (group.getItems().isEmpty()) {
+            int first = findFirstRow(group);
+            getItems().remove(first, findEndRow(group, first));
+            groups.remove(group);
+        } else {
+            renderGroup(group);
+        }
+    }
+
+    private int findFirstRow(MediaGroup group) {
+        List<Row> rows = getItems();
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).group == group) {
+                return i;
+            }
+        }
+        return rows.size();
+    }
+
+    /**
+     * @return The index after the last row of the group starting at first.
+     */
+    private int findEndRow(MediaGroup group, int first) {
+        List<Row> rows = getItems();
+        int end = first;
+        while (end < rows.size() && rows.get(end).group == group) {
+            end++;
+        }
+        return end;
+    }
+
+    private void renderGroup(MediaGroup group) {
+        List<Row> rows = getItems();
+        int first = findFirstRow(group);
+        rows.subList(first, findEndRow(group, first)).clear();
+        rows.addAll(first, buildRows(group));
+    }
+
+    private List<Row> buildRows(MediaGroup group) {
+        List<Row> rows = new ArrayList<>();
+        rows.add(new Row(group, null));
+        List<MediaItem> items = group.getItems();
+        for (int i = 0; i < items.size(); i += columns) {
+            rows.add(new Row(group, new ArrayList<>(items.subList(i, Math.min(items.size(), i + columns)))));
+        }
+        return rows;
+    }
+
+    private int computeColumns() {
+        double tileWidth = MediaItemButton.iconSize + 30 + TILE_GAP;
+        return Math.max(1, (int) ((getWidth() - ROW_INSETS + TILE_GAP) / tileWidth));
+    }
+
+    private void rebuildRows() {
+        List<Row> rows = new ArrayList<>();
+        for (MediaGroup group : groups) {
+            rows.addAll(buildRows(group));
+        }
+        getItems().setAll(rows);
+    }
+
+    /**
+     * A grid row, either the header of a group (items is null) or a row of
+     * tiles.
+     */
+    public static class Row {
+
+        private final MediaGroup group;
+        private final List<MediaItem> items;
+
+        Row(MediaGroup group, List<MediaItem> items) {
+            this.group = group;
+            this.items = items;
+        }
+
+        public MediaGroup getGroup() {
+            return group;
+        }
+
+        public List<MediaItem> getItems() {
+            return items;
+        }
+
+        public boolean isHeader() {
+            return items == null;
+        }
+    }
+
+    private class GridCell extends ListCell<Row> {
+
+        private final Label header = new Label();
+        private final HBox tiles = new HBox(TILE_GAP);
+        private final List<MediaItemButton> buttons = new ArrayList<>();
+
+        GridCell() {
+            header.setMaxWidth(Double.MAX_VALUE);
+            header.setMinHeight(Control.USE_PREF_SIZE); // Workaround for RT-14251
+            header.getStyleClass().add("category-header");
+            tiles.getStyleClass().add("category-page-flow");
+        }
+
+        @Override
+        protected void updateItem(Row row, boolean empty) {
+            super.updateItem(row, empty);
+            setText(null);
+            if (empty || row == null) {
+                setGraphic(null);
+            } else if (row.isHeader()) {
+                header.setText(row.group.getTitle());
+                setGraphic(header);
+            } else {
+                while (buttons.size() < row.items.size()) {
+                    buttons.add(new MediaItemButton(metaBox, modalDimmer, selectedMediaItem, thumbnailCache, browser));
+                }
+                for (int i = 0; i < row.items.size(); i++) {
+                    buttons.get(i).setMediaItem(row.items.get(i));
+                }
+                tiles.getChildren().setAll(buttons.subList(0, row.items.size()));
+                setGraphic(tiles);
+            }
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package com.example.javafx;
 
 import com.example.media.MediaItem;
-import java.io.File;
-import java.io.IOException;
+import com.example.media.MediaType;
 import javafx.animation.Interpolator;
 import javafx.animation.KeyFrame;
 import javafx.animation.KeyValue;
 import javafx.animation.TimelineBuilder;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.WeakInvalidationListener;
+import javafx.beans.property.ObjectProperty;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Node;
@@ -14,32 +17,106 @@ import javafx.scene.control.Button;
 import javafx.scene.control.ContentDisplay;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.StackPane;
-import javafx.scene.layout.TilePane;
 import javafx.scene.layout.VBox;
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
-import javafx.scene.media.MediaView;
 import javafx.scene.text.Text;
+import java.util.concurrent.Future;
 import javafx.util.Duration;
 
 public class MediaItemButton extends Button {
 
-    private final MediaItem mediaItem;
+    private MediaItem mediaItem;
     public static final int iconSize = 80;
+    //Play graphic from: http://openclipart.org/detail/127705/play-by-augustoschwartz
+    private static final Image PlayImage = new Image(MediaApplication.class.getResourceAsStream("play.png"), iconSize, iconSize, true, true);
     private final VBox metaBox;
     private final StackPane modalDimmer;
+    private final ObjectProperty<MediaItem> selection;
+    private final ThumbnailCache thumbnailCache;
+    private final MediaBrowser browser;
+    private final ImageView thumbnail = new ImageView();
+    private Future<?> thumbnailLoad = null;
     private long lastClickMillis = 0;
+    // held here, the shared selection only holds it weakly so discarded buttons are collected
+    private final InvalidationListener selectionListener = new InvalidationListener() {
 
-    public MediaItemButton(MediaItem mediaItem, VBox metaBox, StackPane modalDimmer) throws IOException {
-        super(mediaItem.getTitle().trim(), getNode(mediaItem));
-        this.mediaItem = mediaItem;
+        @Override
+        public void invalidated(Observable o) {
+            updateSelected();
+        }
+    };
+
+    /**
+     * Creates an empty button, MediaGridView cells reuse their buttons by 
+     * calling setMediaItem.
+     * @param selection The selected MediaItem shared by all buttons of a grid.
+     * @param thumbnailCache The cache image thumbnails are loaded through.
+     * @param browser Shows the item when the button is double clicked.
+     */
+    public MediaItemButton(VBox metaBox, StackPane modalDimmer, ObjectProperty<MediaItem> selection, ThumbnailCache thumbnailCache, MediaBrowser browser) {
+        super(null, null);
         this.metaBox = metaBox;
         this.modalDimmer = modalDimmer;
+        this.selection = selection;
+        this.thumbnailCache = thumbnailCache;
+        this.browser = browser;
+        setGraphic(thumbnail);
+        selection.addListener(new WeakInvalidationListener(selectionListener));
         init();
     }
 
+    public MediaItem getMediaItem() {
+        return mediaItem;
+    }
+
+    public void setMediaItem(MediaItem mediaItem) {
+        if (this.mediaItem == mediaItem) {
+            return;
+        }
+        this.mediaItem = mediaItem;
+        lastClickMillis = 0;
+        setText(mediaItem.getTitle().trim());
+        if (thumbnailLoad != null) {
+            // scrolled away before the thumbnail finished loading
+            thumbnailLoad.cancel(true);
+            thumbnailLoad = null;
+        }
+        switch (mediaItem.getType()) {
+            case FLASH_VIDEO:
+            case MP4_VIDEO:
+            case IMAGE:
+                Image cached = thumbnailCache.getIfPresent(mediaItem.getId());
+                // videos show the play graphic until their poster frame is ready
+                thumbnail.setImage(cached != null || mediaItem.getType() == MediaType.IMAGE ? cached : PlayImage);
+                if (cached == null) {
+                    thumbnailLoad = thumbnailCache.load(mediaItem.getId(), new ThumbnailCache.Listener() {
+
+                        @Override
+                        public void thumbnailLoaded(String path, Image image) {
+                            if (MediaItemButton.this.mediaItem != null && MediaItemButton.this.mediaItem.getId().equals(path)) {
+                                thumbnail.setImage(image);
+                                thumbnailLoad = null;
+                            }
+                        }
+                    });
+                }
+                break;
+            default:
+                thumbnail.setImage(null);
+        }
+        updateSelected();
+    }
+
+    private void updateSelected() {
+        if (mediaItem != null && mediaItem == selection.get()) {
+            if (!getStyleClass().contains("selected")) {
+                getStyleClass().add("selected");
+            }
+        } else {
+            getStyleClass().remove("selected");
+        }
+    }
+
     private void init() {
         int size = iconSize + 30;
         setMinSize(size, size);
@@ -56,15 +133,7 @@ public class MediaItemButton extends Button {
                 long lTime = lastClickMillis;
                 long currentTime = System.currentTimeMillis();
                 lastClickMillis = currentTime;
-                for (Node node : ((VBox) ((TilePane) getParent()).getParent()).getChildren()) {
-                    if (node instanceof TilePane) {
-                        TilePane tPane = (TilePane)node;
-                        for (Node node2 : tPane.getChildren()) {
-                            node2.getStyleClass().remove("selected");
-                        }
-                    }
-                }
-                getStyleClass().add("selected");
+                selection.set(mediaItem);
                 if (currentTime - lTime > 500) {
                     //not a double click
                     ((Text) metaBox.getChildren().get(0)).setText("Name: " + mediaItem.getTitle());
@@ -73,78 +142,12 @@ public class MediaItemButton extends Button {
                     return;
                 }
 
-                switch (mediaItem.getType()) {
-                    case FLASH_VIDEO:
-                    case MP4_VIDEO:
-                        FXPlayer fxPlayer = new FXPlayer(mediaItem.getId(), modalDimmer);
-                        showModalMessage(fxPlayer);
-                        break;
-                    case IMAGE:
-                        Image image = new Image("file:///"+mediaItem.getId(), modalDimmer.getWidth() - 30, modalDimmer.getHeight() - 30, true, true);
-                        ImageView iv = new ImageView(image);
-                        modalDimmer.addEventHandler(MouseEvent.MOUSE_CLICKED, new EventHandler<MouseEvent>() {
-
-                            @Override
-                            public void handle(MouseEvent t) {
-                                t.consume();
-                                hideModalMessage();
-                                modalDimmer.removeEventHandler(MouseEvent.MOUSE_CLICKED, this);
-                            }
-                        });
-                        showModalMessage(iv);
-                        break;
-                    default:
-
-                }
+                browser.open(mediaItem);
             }
         });
 
     }
 
-    private static Node getNode(MediaItem mediaItem) throws IOException {
-        switch (mediaItem.getType()) {
-            case FLASH_VIDEO:
-            case MP4_VIDEO:
-                return createMovieThumbnail(mediaItem.getId());
-                //return createMoviePreview(mediaItem.getId());
-            case IMAGE:
-                return createImageThumbnail(mediaItem.getId());
-            default:
-                throw new IllegalArgumentException();
-        }
-    }
-
-    public static ImageView createImageThumbnail(String path) {
-        String url = "file:///" + path;
-        Image image = new Image(url, iconSize, iconSize, true, true);
-        ImageView iv = new ImageView(image);
-        return iv;
-    }
-
-    public static ImageView createMovieThumbnail(String path) throws IOException {
-        //Play graphic from: http://openclipart.org/detail/127705/play-by-augustoschwartz
-        Image image = new Image(MediaApplication.class.getResourceAsStream("play.png"), iconSize, iconSize, true, true);
-        ImageView iv = new ImageView(image);
-        return iv;
-    }
-
-    public static MediaView createMoviePreview(String path) throws IOException {
-        final Media media = new Media(new File(path).toURI().toString());
-        final MediaPlayer mediaPlayer = new MediaPlayer(media);
-//        mediaPlayer.setOnError(new Runnable() {
-//            public void run() {
-//                System.out.println(mediaPlayer.getError());
-//            }
-//        });
-        mediaPlayer.cycleCountProperty().setValue(MediaPlayer.INDEFINITE);
-        mediaPlayer.muteProperty().setValue(true);
-        mediaPlayer.setAutoPlay(true);
-        MediaView mediaView = new MediaView(mediaPlayer);
-        mediaView.setFitHeight(iconSize);
-        mediaView.setFitWidth(iconSize);
-        return mediaView;
-    }
-
     /**
      * Show the given node as a floating dialog over the whole application, with
      * the rest of the application dimmed out and blocked from mouse events.
@@ -0,0 +1,166 @@
+package com.example.javafx;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaException;
+import javafx.scene.media.MediaPlayer;
+import javafx.scene.media.MediaPlayer.Status;
+
+/**
+ * Owns all MediaPlayers, each holding a native decoder: those of the
+ * FXPlayers, those opened ahead for videos about to be shown, so their Media
+ * is ready when they are acquired, and those capturing poster frames. A
+ * player is disposed as soon as it is released, and at most MAX_PLAYERS
+ * players exist at a time. To make room for an acquired player the players
+ * opened ahead are disposed first, oldest first, then the players in use are
+ * revoked, oldest first: they are disposed and their owner is told through
+ * the callback it acquired them with. Players acquired with tryAcquire never
+ * make room. Only used on the JavaFX Application Thread.
+ */
+public class MediaPlayerManager {
+
+    private static final Logger logger = Logger.getLogger("com.example.javafx.MediaPlayerManager");
+    public static final int MAX_PLAYERS = 2;
+    // insertion ordered, the first player was acquired first, mapped to its revoke callback
+    private final LinkedHashMap<MediaPlayer, Runnable> active = new LinkedHashMap<>();
+    // insertion ordered, the first entry was opened first
+    private final LinkedHashMap<String, MediaPlayer> preopened = new LinkedHashMap<>();
+
+    /**
+     * Returns the player opened ahead for a video or opens a new one, making
+     * room when all players are in use.
+     * @param path The path of the video file.
+     * @param onRevoked Run when the player is disposed to make room for
+     * another one, or null.
+     * @return A player which must be given back with release.
+     * @throws MediaException If the video can not be opened.
+     */
+    public MediaPlayer acquire(String path, Runnable onRevoked) {
+        MediaPlayer player = preopened.remove(path);
+        if (player != null && player.getStatus() == Status.HALTED) {
+            player.dispose();
+            player = null;
+        }
+        if (player == null) {
+            makeRoom();
+            player = open(path);
+        }
+        active.put(player, onRevoked);
+        return player;
+    }
+
+    /**
+     * Opens a player only if one is free, for work which can be given up,
+     * such as capturing a poster frame.
+     * @param path The path of the video file.
+     * @param onRevoked Run when the player is disposed to make room for
+     * another one, or null.
+     * @return A player which must be given back with release, or null.
+     * @throws MediaException If the video can not be opened.
+     */
+    public MediaPlayer tryAcquire(String path, Runnable onRevoked) {
+        if (getPlayerCount() >= MAX_PLAYERS) {
+            return null;
+        }
+        MediaPlayer player = open(path);
+        active.put(player, onRevoked);
+        return player;
+    }
+
+    /**
+     * Disposes a player returned by acquire or tryAcquire. Releasing it again,
+     * or after it was revoked, does nothing.
+     */
+    public void release(MediaPlayer player) {
+        if (active.containsKey(player)) {
+            active.remove(player);
+            player.dispose();
+        }
+    }
+
+    /**
+     * Opens a player for a video so it can load its Media before it is
+     * acquired. Nothing is opened when all players are in use.
+     * @param path The path of the video file.
+     */
+    public void preopen(String path) {
+        if (preopened.containsKey(path) || active.size() >= MAX_PLAYERS) {
+            return;
+        }
+        makeRoom();
+        try {
+            preopened.put(path, open(path));
+        } catch (MediaException ex) {
+            logger.log(Level.FINE, "Unable to open " + path, ex);
+        }
+    }
+
+    /**
+     * @return The number of players in use or opened ahead.
+     */
+    public int getPlayerCount() {
+        return active.size() + preopened.size();
+    }
+
+    /**
+     * Disposes the players opened ahead, called when the videos they were
+     * opened for are no longer about to be shown.
+     */
+    public void disposePreopened() {
+        for (MediaPlayer player : preopened.values()) {
+            player.dispose();
+        }
+        preopened.clear();
+    }
+
+    /**
+     * Disposes all players.
+     */
+    public void shutdown() {
+        for (MediaPlayer player : active.keySet()) {
+            player.dispose();
+        }
+        active.clear();
+        disposePreopened();
+    }
+
+    /**
+     * Disposes players opened ahead, then revokes players in use, until one
+     * more player fits.
+     */
+    private void makeRoom() {
+        Iterator<MediaPlayer> it = preopened.values().iterator();
+        while (getPlayerCount() >= MAX_PLAYERS && it.hasNext()) {
+            it.next().dispose();
+            it.remove();
+        }
+        List<Runnable> revoked = new ArrayList<>();
+        Iterator<Map.Entry<MediaPlayer, Runnable>> inUse = active.entrySet().iterator();
+        while (getPlayerCount() >= MAX_PLAYERS && inUse.hasNext()) {
+            Map.Entry<MediaPlayer, Runnable> eldest = inUse.next();
+            inUse.remove();
+            eldest.getKey().dispose();
+            if (eldest.getValue() != null) {
+                revoked.add(eldest.getValue());
+            }
+        }
+        if (!revoked.isEmpty()) {
+            logger.log(Level.FINE, "Revoked {0} players in use", revoked.size());
+        }
+        // told once the players are gone, so they can not release them again
+        for (Runnable onRevoked : revoked) {
+            onRevoked.run();
+        }
+    }
+
+    private static MediaPlayer open(String path) {
+        return new MediaPlayer(new Media(new File(path).toURI().toString()));
+    }
+}
@@ -0,0 +1,461 @@
+package com.example.javafx;
+
+import com.example.media.MediaItem;
+import com.example.media.MediaItemListener;
+import com.example.media.MediaType;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
+
+/**
+ * A two tier cache of image thumbnails. Decoded thumbnails are kept in a
+ * memory LRU bounded by pixel bytes, and pre-scaled pixels are stored on disk
+ * keyed by the file path and validated against the file modification time
+ * and size, so revisiting a folder does not decode the source images again.
+ * On a miss the EXIF thumbnail of a JPEG is used when present, so only the
+ * file header has to be read. Video poster frames are captured on a separate
+ * pool with players of the MediaPlayerManager, when one is free. Entries
+ * are dropped when a MediaManager reports the item as updated or deleted.
+ * The disk tier is bounded by file bytes: a disk hit marks its file as used
+ * by setting its modification time, and when a write takes the tier over its
+ * bound, or it is found over the bound on startup, the least recently used
+ * files are deleted until it is back to PRUNE_TO_PERCENT of the bound.
+ */
+public class ThumbnailCache implements MediaItemListener {
+
+    private static final Logger logger = Logger.getLogger("com.example.javafx.ThumbnailCache");
+    private static final int MAGIC = 0x54484D42; // "THMB"
+    private static final String SUFFIX = ".thumb";
+    private static final int PRUNE_TO_PERCENT = 90;
+    // a disk hit only marks a file older than this as used, sparing a write per hit
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 60 * 1000;
+    private final File diskDir;
+    private final long maxDiskBytes;
+    // approximate, recounted by each prune
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final Object pruneLock = new Object();
+    private final int thumbnailSize;
+    private final long maxMemoryBytes;
+    private long memoryBytes = 0;
+    // access ordered, the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exifHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "thumbnail-loader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static final int MAX_VIDEO_DECODERS = 2;
+    private final ExecutorService videoExecutor = Executors.newFixedThreadPool(MAX_VIDEO_DECODERS, new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "poster-loader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final VideoPosterGenerator posterGenerator;
+
+    /**
+     * Receives thumbnails loaded in the background, on the JavaFX Application
+     * Thread.
+     */
+    public interface Listener {
+
+        public void thumbnailLoaded(String path, Image image);
+    }
+
+    /**
+     * @param diskDir The directory holding the on-disk tier, created if needed.
+     * @param thumbnailSize The width and height thumbnails are scaled to fit.
+     * @param maxMemoryBytes The pixel bytes the memory tier may hold.
+     * @param maxDiskBytes The file bytes the disk tier may hold.
+     * @param players The manager video poster frames are captured with.
+     */
+    public ThumbnailCache(File diskDir, int thumbnailSize, long maxMemoryBytes, long maxDiskBytes, MediaPlayerManager players) {
+        this.posterGenerator = new VideoPosterGenerator(Duration.seconds(5), 10000, players);
+        this.diskDir = diskDir;
+        this.thumbnailSize = thumbnailSize;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        // counts the tier left by previous runs
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                pruneDisk();
+            }
+        });
+    }
+
+    /**
+     * @return The default disk tier location, ~/.mediamanager/thumbnails
+     */
+    public static File getDefaultLocation() {
+        return new File(System.getProperty("user.home"), ".mediamanager" + File.separator + "thumbnails");
+    }
+
+    /**
+     * Returns the thumbnail from the memory tier without touching the disk.
+     * @param path The path of the image file.
+     * @return The thumbnail or null if it is not in memory.
+     */
+    public Image getIfPresent(String path) {
+        Entry entry;
+        synchronized (memory) {
+            entry = memory.get(path);
+        }
+        if (entry == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.image;
+    }
+
+    /**
+     * Loads a thumbnail in the background from the disk tier, or by decoding
+     * the source image or a video poster frame when it is missing or stale.
+     * @param path The path of the image or video file.
+     * @param listener Notified on the JavaFX Application Thread on success.
+     * @return A Future which can be cancelled when the thumbnail is no longer
+     * needed.
+     */
+    public Future<?> load(final String path, final Listener listener) {
+        ExecutorService pool = isVideo(path) ? videoExecutor : executor;
+        return pool.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                final Image image = loadNow(path);
+                if (image != null && !Thread.currentThread().isInterrupted()) {
+                    Platform.runLater(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            listener.thumbnailLoaded(path, image);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private Image loadNow(String path) {
+        File f = new File(path);
+        long modified = f.lastModified();
+        long size = f.length();
+        synchronized (memory) {
+            Entry entry = memory.get(path);
+            if (entry != null && entry.modified == modified && entry.size == size) {
+                hits.incrementAndGet();
+                return entry.image;
+            }
+        }
+        Image image = readDisk(path, modified, size);
+        if (image != null) {
+            diskHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            image = decode(f);
+            if (image == null || image.isError()) {
+                logger.log(Level.FINE, "Unable to decode {0}", path);
+                return null;
+            }
+            writeDisk(path, modified, size, image);
+        }
+        put(path, new Entry(image, modified, size));
+        return image;
+    }
+
+    private static boolean isVideo(String path) {
+        switch (MediaType.forName(path)) {
+            case FLASH_VIDEO:
+            case MP4_VIDEO:
+            case OGV_VIDEO:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Image decode(File f) {
+        if (isVideo(f.getName())) {
+            return posterGenerator.capture(f, thumbnailSize);
+        }
+        if (ExifThumbnail.isJpeg(f.getName())) {
+            try {
+                byte[] embedded = ExifThumbnail.read(f);
+                if (embedded != null) {
+                    Image image = new Image(new ByteArrayInputStream(embedded), thumbnailSize, thumbnailSize, true, true);
+                    if (!image.isError()) {
+                        exifHits.incrementAndGet();
+                        return image;
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                // a corrupt EXIF segment falls back to decoding the image
+                logger.log(Level.FINE, "Unable to read EXIF thumbnail of " + f, ex);
+            }
+        }
+        return new Image(f.toURI().toString(), thumbnailSize, thumbnailSize, true, true);
+    }
+
+    private void put(String path, Entry entry) {
+        synchronized (memory) {
+            Entry previous = memory.put(path, entry);
+            if (previous != null) {
+                memoryBytes -= previous.bytes();
+            }
+            memoryBytes += entry.bytes();
+            Iterator<Entry> it = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest == entry) {
+                    break;
+                }
+                memoryBytes -= eldest.bytes();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the memory and disk entries of a file.
+     * @param path The path of the image file.
+     */
+    public void invalidate(String path) {
+        synchronized (memory) {
+            Entry entry = memory.remove(path);
+            if (entry != null) {
+                memoryBytes -= entry.bytes();
+            }
+        }
+        File f = diskFile(path);
+        long length = f.length();
+        if (f.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    @Override
+    public void mediaItemCreated(MediaItem item) {
+        invalidate(item.getId());
+    }
+
+    @Override
+    public void mediaItemUpdated(MediaItem item) {
+        invalidate(item.getId());
+    }
+
+    @Override
+    public void mediaItemDeleted(String id) {
+        invalidate(id);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of misses served from an embedded EXIF thumbnail
+     * instead of decoding the full image.
+     */
+    public long getExifHitCount() {
+        return exifHits.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits:" + hits + " diskHits:" + diskHits + " misses:" + misses + " exifHits:" + exifHits + " evictions:" + evictions;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        videoExecutor.shutdownNow();
+    }
+
+    private File diskFile(String path) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest(path.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(diskDir, name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private Image readDisk(String path, long modified, long size) {
+        File f = diskFile(path);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(f))))) {
+            if (in.readInt() != MAGIC || in.readLong() != modified || in.readLong() != size) {
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = in.readInt();
+            }
+            WritableImage image = new WritableImage(width, height);
+            image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+            long now = System.currentTimeMillis();
+            if (now - f.lastModified() > TOUCH_INTERVAL_MILLIS) {
+                // access times are often not kept, the modification time orders the pruning
+                f.setLastModified(now);
+            }
+            return image;
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.FINE, "Ignoring unreadable thumbnail " + f, ex);
+            return null;
+        }
+    }
+
+    private void writeDisk(String path, long modified, long size, Image image) {
+        if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+            logger.log(Level.WARNING, "Unable to create thumbnail directory {0}", diskDir);
+            return;
+        }
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        int[] pixels = new int[width * height];
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        File f = diskFile(path);
+        File tmp = new File(diskDir, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeLong(modified);
+                out.writeLong(size);
+                out.writeInt(width);
+                out.writeInt(height);
+                for (int pixel : pixels) {
+                    out.writeInt(pixel);
+                }
+            }
+            long replaced = f.length();
+            long written = tmp.length();
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (diskBytes.addAndGet(written - replaced) > maxDiskBytes) {
+                pruneDisk();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to write thumbnail " + f, ex);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Counts the bytes of the disk tier and, when it is over its bound,
+     * deletes the least recently used files until it is back to
+     * PRUNE_TO_PERCENT of the bound.
+     */
+    private void pruneDisk() {
+        synchronized (pruneLock) {
+            File[] files = diskDir.listFiles(new FilenameFilter() {
+
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(SUFFIX);
+                }
+            });
+            if (files == null) {
+                return;
+            }
+            // read once, the times change while sorting when files are used
+            final Map<File, Long> used = new HashMap<>();
+            long total = 0;
+            for (File f : files) {
+                used.put(f, f.lastModified());
+                total += f.length();
+            }
+            int deleted = 0;
+            if (total > maxDiskBytes) {
+                Arrays.sort(files, new Comparator<File>() {
+
+                    @Override
+                    public int compare(File a, File b) {
+                        return Long.compare(used.get(a), used.get(b));
+                    }
+                });
+                long target = maxDiskBytes / 100 * PRUNE_TO_PERCENT;
+                for (int i = 0; i < files.length && total > target; i++) {
+                    long length = files[i].length();
+                    if (files[i].delete()) {
+                        total -= length;
+                        deleted++;
+                    }
+                }
+            }
+            diskBytes.set(total);
+            logger.log(Level.FINE, "Pruned {0} thumbnails, {1} bytes on disk", new Object[]{deleted, total});
+        }
+    }
+
+    private static class Entry {
+
+        private final Image image;
+        private final long modified;
+        private final long size;
+
+        Entry(Image image, long modified, long size) {
+            this.image = image;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        long bytes() {
+            return (long) image.getWidth() * (long) image.getHeight() * 4;
+        }
+    }
+}
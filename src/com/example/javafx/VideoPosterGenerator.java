@@ -0,0 +1,149 @@
+package com.example.javafx;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.Image;
+import javafx.scene.media.MediaPlayer;
+import javafx.scene.media.MediaView;
+import javafx.scene.paint.Color;
+import javafx.util.Duration;
+
+/**
+ * Captures a poster frame of a video. A muted MediaPlayer is opened on the
+ * JavaFX Application Thread, played up to the poster offset and the MediaView
+ * is snapshotted, then the player is released. The player is taken from
+ * the MediaPlayerManager only when one is free, so captures count against
+ * its cap and give way to the videos being watched. The capture method
+ * blocks the calling worker thread until the frame is ready.
+ */
+public class VideoPosterGenerator {
+
+    private static final Logger logger = Logger.getLogger("com.example.javafx.VideoPosterGenerator");
+    private final Duration offset;
+    private final long timeoutMillis;
+    private final MediaPlayerManager players;
+
+    /**
+     * @param offset The position of the poster frame, videos shorter than
+     * the offset use their middle frame.
+     * @param timeoutMillis How long to wait for a frame before giving up.
+     * @param players The manager the players are acquired from.
+     */
+    public VideoPosterGenerator(Duration offset, long timeoutMillis, MediaPlayerManager players) {
+        this.offset = offset;
+        this.timeoutMillis = timeoutMillis;
+        this.players = players;
+    }
+
+    /**
+     * Captures a poster frame, must not be called on the JavaFX Application
+     * Thread.
+     * @param f The video file.
+     * @param size The width and height the poster is scaled to fit.
+     * @return The poster frame or null if the video could not be decoded in
+     * time or no player was free.
+     */
+    public Image capture(final File f, final int size) {
+        if (Platform.isFxApplicationThread()) {
+            throw new IllegalStateException("Poster frames must be captured off the JavaFX Application Thread");
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Image> result = new AtomicReference<>();
+        final AtomicReference<MediaPlayer> playerRef = new AtomicReference<>();
+        Platform.runLater(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    final MediaPlayer player = players.tryAcquire(f.getPath(), new Runnable() {
+
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    });
+                    if (player == null) {
+                        logger.log(Level.FINE, "No player free to capture a poster frame of {0}", f);
+                        done.countDown();
+                        return;
+                    }
+                    playerRef.set(player);
+                    final MediaView view = new MediaView(player);
+                    view.setFitWidth(size);
+                    view.setFitHeight(size);
+                    view.setPreserveRatio(true);
+                    player.setMute(true);
+                    player.setOnError(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            logger.log(Level.FINE, "Unable to decode {0}: {1}", new Object[]{f, player.getError()});
+                            done.countDown();
+                        }
+                    });
+                    player.setOnReady(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            Duration duration = player.getMedia().getDuration();
+                            final Duration at = duration.isUnknown() || duration.greaterThan(offset) ? offset : duration.divide(2);
+                            player.currentTimeProperty().addListener(new ChangeListener<Duration>() {
+
+                                @Override
+                                public void changed(ObservableValue<? extends Duration> observable, Duration oldValue, Duration newValue) {
+                                    if (!newValue.lessThan(at) && done.getCount() > 0) {
+                                        player.pause();
+                                        SnapshotParameters params = new SnapshotParameters();
+                                        params.setFill(Color.TRANSPARENT);
+                                        result.set(view.snapshot(params, null));
+                                        done.countDown();
+                                    }
+                                }
+                            });
+                            player.seek(at);
+                            player.play();
+                        }
+                    });
+                    player.setOnEndOfMedia(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    // MediaException for unsupported or unreadable files
+                    logger.log(Level.FINE, "Unable to open " + f, ex);
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.log(Level.FINE, "Timed out capturing a poster frame of {0}", f);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Platform.runLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    MediaPlayer player = playerRef.get();
+                    if (player != null) {
+                        players.release(player);
+                    }
+                }
+            });
+        }
+        return result.get();
+    }
+}
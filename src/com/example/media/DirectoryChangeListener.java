@@ -0,0 +1,25 @@
+package com.example.media;
+
+import java.io.File;
+import java.util.EventListener;
+
+/**
+ * Receives notifications about subdirectories appearing in or disappearing
+ * from a watched directory.
+ */
+public interface DirectoryChangeListener extends EventListener {
+
+    public void directoryCreated(File dir);
+
+    /**
+     * Called for a deleted subdirectory which existed when watching started
+     * or was reported by directoryCreated.
+     */
+    public void directoryDeleted(File dir);
+
+    /**
+     * Called when the file system dropped change events and the directory
+     * has to be listed again.
+     */
+    public void changesLost(File dir);
+}
@@ -0,0 +1,396 @@
+package com.example.media;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds media files with equal content. Files are told apart in three steps,
+ * each only applied to the files the previous step could not separate: the
+ * size, a hash of the first and last PARTIAL_BYTES, and a hash of the whole
+ * file. Files are read through a reused buffer rather than mapped, since a
+ * mapping keeps the file open until it is collected and a file open on
+ * Windows can not be moved or deleted. The hashes are cached in the
+ * MediaIndex when there is one.
+ */
+public class DuplicateFinder {
+
+    private static final Logger logger = Logger.getLogger("com.example.media.DuplicateFinder");
+    public static final int PARTIAL_BYTES = 64 * 1024;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private final MediaIndex index;
+
+    /**
+     * @param index The MediaIndex caching the hashes or null.
+     */
+    public DuplicateFinder(MediaIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @param files The files to compare, they may be in several directories.
+     * @return The content hash of every file which has a duplicate among the
+     * files.
+     */
+    public Map<File, String> findDuplicates(Collection<File> files) {
+        Map<File, Map<String, MediaIndex.Entry>> entriesByDir = new HashMap<>();
+        Map<Long, List<Candidate>> bySize = new HashMap<>();
+        for (File f : files) {
+            File dir = f.getAbsoluteFile().getParentFile();
+            Map<String, MediaIndex.Entry> entries = entriesByDir.get(dir);
+            if (entries == null) {
+                entries = listEntries(dir);
+                entriesByDir.put(dir, entries);
+            }
+            Candidate candidate = new Candidate(dir, f.getName(), entries.get(f.getName()));
+            if (candidate.size >= 0) {
+                add(bySize, candidate.size, candidate);
+            }
+        }
+        Map<File, String> duplicates = new HashMap<>();
+        List<Candidate> compared = new ArrayList<>();
+        for (List<Candidate> sameSize : bySize.values()) {
+            if (sameSize.size() < 2) {
+                continue;
+            }
+            Map<String, List<Candidate>> byPartial = new HashMap<>();
+            for (Candidate candidate : sameSize) {
+                if (candidate.partialHash() != null) {
+                    add(byPartial, candidate.partialHash, candidate);
+                }
+            }
+            for (List<Candidate> samePartial : byPartial.values()) {
+                if (samePartial.size() < 2) {
+                    continue;
+                }
+                Map<String, List<Candidate>> byContent = new HashMap<>();
+                for (Candidate candidate : samePartial) {
+                    if (candidate.contentHash() != null) {
+                        add(byContent, candidate.contentHash, candidate);
+                    }
+                }
+                for (Map.Entry<String, List<Candidate>> same : byContent.entrySet()) {
+                    if (same.getValue().size() > 1) {
+                        for (Candidate candidate : same.getValue()) {
+                            duplicates.put(candidate.file, same.getKey());
+                        }
+                    }
+                }
+            }
+            compared.addAll(sameSize);
+        }
+        if (index != null) {
+            Map<File, List<MediaIndex.Entry>> hashedByDir = new HashMap<>();
+            for (Candidate candidate : compared) {
+                List<MediaIndex.Entry> hashed = hashedByDir.get(candidate.file.getParentFile());
+                if (hashed == null) {
+                    hashed = new ArrayList<>();
+                    hashedByDir.put(candidate.file.getParentFile(), hashed);
+                }
+                collectHashed(Collections.singletonList(candidate), hashed);
+            }
+            for (Map.Entry<File, List<MediaIndex.Entry>> entry : hashedByDir.entrySet()) {
+                index.updateHashes(entry.getKey(), entry.getValue());
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Looks for a media file in dir with the same content as a file.
+     * @param dir The directory to search.
+     * @param f The file to look for, it may be outside dir.
+     * @return The first file found with equal content or null.
+     */
+    public File findDuplicateOf(File dir, File f) {
+        Candidate target = new Candidate(f.getParentFile(), f.getName(), null);
+        if (target.size < 0) {
+            return null;
+        }
+        return findDuplicateOf(dir, target);
+    }
+
+    /**
+     * Looks for a media file in dir with content hashed by a StreamHasher,
+     * without reading the hashed content again.
+     * @param dir The directory to search.
+     * @param hashed The hasher the whole content was passed to.
+     * @return The first file found with equal content or null.
+     */
+    public File findDuplicateOf(File dir, StreamHasher hashed) {
+        return findDuplicateOf(dir, new Candidate(hashed));
+    }
+
+    private File findDuplicateOf(File dir, Candidate target) {
+        Map<String, MediaIndex.Entry> entries = listEntries(dir);
+        Collection<String> names = entries.keySet();
+        if (index == null) {
+            names = new ArrayList<>();
+            String[] listed = dir.list();
+            if (listed != null) {
+                for (String name : listed) {
+                    if (MediaType.forName(name) != MediaType.OTHER) {
+                        names.add(name);
+                    }
+                }
+            }
+        }
+        List<Candidate> sameSize = new ArrayList<>();
+        File found = null;
+        for (String name : names) {
+            Candidate candidate = new Candidate(dir, name, entries.get(name));
+            if (candidate.size == target.size) {
+                sameSize.add(candidate);
+                if (found == null && target.partialHash() != null && target.partialHash.equals(candidate.partialHash())
+                        && target.contentHash() != null && target.contentHash.equals(candidate.contentHash())) {
+                    found = new File(dir, name);
+                }
+            }
+        }
+        if (index != null) {
+            List<MediaIndex.Entry> hashed = new ArrayList<>();
+            collectHashed(sameSize, hashed);
+            index.updateHashes(dir, hashed);
+        }
+        return found;
+    }
+
+    private Map<String, MediaIndex.Entry> listEntries(File dir) {
+        Map<String, MediaIndex.Entry> entries = new HashMap<>();
+        if (index != null) {
+            for (MediaIndex.Entry entry : index.list(dir)) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+        return entries;
+    }
+
+    private static void collectHashed(List<Candidate> candidates, List<MediaIndex.Entry> hashed) {
+        for (Candidate candidate : candidates) {
+            if (candidate.entry != null && candidate.computed) {
+                hashed.add(candidate.entry.withHashes(candidate.partialHash, candidate.contentHash));
+            }
+        }
+    }
+
+    private static <K> void add(Map<K, List<Candidate>> map, K key, Candidate candidate) {
+        List<Candidate> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            map.put(key, list);
+        }
+        list.add(candidate);
+    }
+
+    /**
+     * Hashes the size and the first and last PARTIAL_BYTES of a file.
+     */
+    public static String partialHash(File f, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (size >>> (56 - 8 * i)));
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(PARTIAL_BYTES);
+            long head = Math.min(size, PARTIAL_BYTES);
+            update(digest, channel, 0, head, buffer);
+            if (size > head) {
+                long tail = Math.min(size - head, PARTIAL_BYTES);
+                update(digest, channel, size - tail, tail, buffer);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes the whole content of a file, reading it a buffer at a time.
+     */
+    public static String contentHash(File f, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            update(digest, channel, 0, size, ByteBuffer.allocateDirect(READ_BUFFER_BYTES));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, FileChannel channel, long position, long length, ByteBuffer buffer) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException(position + " of " + end);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Computes the hashes of content as it is written, so content which is
+     * being stored does not have to be read back to look for duplicates.
+     */
+    public static class StreamHasher {
+
+        private final MessageDigest content = newDigest();
+        private final byte[] head = new byte[PARTIAL_BYTES];
+        // the last PARTIAL_BYTES, byte i of the content is at i % PARTIAL_BYTES
+        private final byte[] tail = new byte[PARTIAL_BYTES];
+        private long size = 0;
+
+        /**
+         * @param bytes The next bytes of the content, from its position to
+         * its limit, which are consumed.
+         */
+        public void update(ByteBuffer bytes) {
+            int n = bytes.remaining();
+            if (size < PARTIAL_BYTES) {
+                copy(bytes, 0, head, (int) size, (int) Math.min(n, PARTIAL_BYTES - size));
+            }
+            for (int i = Math.max(0, n - PARTIAL_BYTES); i < n;) {
+                int at = (int) ((size + i) % PARTIAL_BYTES);
+                int length = Math.min(n - i, PARTIAL_BYTES - at);
+                copy(bytes, i, tail, at, length);
+                i += length;
+            }
+            content.update(bytes);
+            size += n;
+        }
+
+        private static void copy(ByteBuffer bytes, int offset, byte[] to, int at, int length) {
+            ByteBuffer view = bytes.duplicate();
+            view.position(bytes.position() + offset);
+            view.get(to, at, length);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The hash partialHash computes for the content.
+         */
+        public String getPartialHash() {
+            MessageDigest digest = newDigest();
+            for (int i = 0; i < 8; i++) {
+                digest.update((byte) (size >>> (56 - 8 * i)));
+            }
+            int headLength = (int) Math.min(size, PARTIAL_BYTES);
+            digest.update(head, 0, headLength);
+            long tailLength = Math.min(size - headLength, PARTIAL_BYTES);
+            for (long i = size - tailLength; i < size;) {
+                int at = (int) (i % PARTIAL_BYTES);
+                int length = (int) Math.min(size - i, PARTIAL_BYTES - at);
+                digest.update(tail, at, length);
+                i += length;
+            }
+            return toHex(digest.digest());
+        }
+
+        /**
+         * @return The hash contentHash computes for the content, the
+         * hasher is not updated after this call.
+         */
+        public String getContentHash() {
+            return toHex(content.digest());
+        }
+    }
+
+    /**
+     * A file being compared, its hashes are taken from the index entry or
+     * computed at most once.
+     */
+    private static class Candidate {
+
+        private final File file;
+        private final String name;
+        private final MediaIndex.Entry entry;
+        private final long size;
+        private String partialHash;
+        private String contentHash;
+        private boolean computed = false;
+
+        Candidate(StreamHasher hashed) {
+            this.file = null;
+            this.name = null;
+            this.entry = null;
+            this.size = hashed.getSize();
+            this.partialHash = hashed.getPartialHash();
+            this.contentHash = hashed.getContentHash();
+        }
+
+        Candidate(File dir, String name, MediaIndex.Entry entry) {
+            this.file = new File(dir, name);
+            this.name = name;
+            this.entry = entry;
+            long length;
+            if (entry != null) {
+                length = entry.getSize();
+                partialHash = entry.getPartialHash();
+                contentHash = entry.getContentHash();
+            } else {
+                try {
+                    length = FileStats.read(file.toPath()).size();
+                } catch (IOException ex) {
+                    length = -1;
+                }
+            }
+            this.size = length;
+        }
+
+        String partialHash() {
+            if (partialHash == null) {
+                try {
+                    partialHash = DuplicateFinder.partialHash(file, size);
+                    computed = true;
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Unable to hash " + file, ex);
+                }
+            }
+            return partialHash;
+        }
+
+        String contentHash() {
+            if (contentHash == null) {
+                try {
+                    contentHash = DuplicateFinder.contentHash(file, size);
+                    computed = true;
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Unable to hash " + file, ex);
+                }
+            }
+            return contentHash;
+        }
+    }
+}
@@ -1,21 +1,64 @@
 package com.example.media;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 
 public class FileMediaManager implements MediaManager {
 
     private static final Logger logger = Logger.getLogger("com.example.media.FileMediaManager");
     private File dir;
     private String hiddenLocationPrefix = null;
+    private transient MediaIndex index = null;
+    private transient MetaDataManager metaData = null;
+    private transient List<MediaItemListener> listeners = new CopyOnWriteArrayList<>();
+    private transient ExecutorService scanExecutor = null;
+    private transient List<DirectoryChangeListener> directoryListeners = new CopyOnWriteArrayList<>();
+    private transient WatchService watchService = null;
+    // the names of the subdirectories while watching, a deleted entry can not be checked for being one
+    private transient Set<String> childDirs = null;
+    private transient boolean deduplicateOnCreate = false;
+    // the last listing, kept up to date with single item changes while watching
+    private transient SortedMediaGroups liveGroups = null;
+    private transient List<MediaType> liveTypes = null;
+    private transient long changeCount = 0;
+    private static final int SCAN_CHUNK_SIZE = 256;
+    private static final long INGEST_CHUNK_SIZE = 8 * 1024 * 1024;
 
     public enum IdFormat {
         WEB,
@@ -43,186 +86,1161 @@ public class FileMediaManager implements MediaManager {
         logger.log(Level.INFO, "FileMediaManager created with a IdFormat of {0}", idFormat);
     }
 
+    /**
+     * Creates a MediaManager which uses a directory as a source of MediaItem 
+     * objects and a persistent MediaIndex to avoid re-examining files that did 
+     * not change since the directory was last listed.
+     * @param dir The directory containing media pictures and videos.
+     * @param idFormat The IdFormat of received and returned MediaItem ids.
+     * @param index The MediaIndex to list the directory through, may be shared
+     * between FileMediaManager instances.
+     * @throws FileNotFoundException
+     */
+    public FileMediaManager(File dir, IdFormat idFormat, MediaIndex index) throws FileNotFoundException {
+        this(dir, idFormat);
+        this.index = index;
+    }
+
+    /**
+     * Creates a MediaManager which lists the directory through a MediaIndex 
+     * and keeps titles, tags and dates in a MetaDataManager, which also 
+     * enables listing by tags.
+     * @param dir The directory containing media pictures and videos.
+     * @param idFormat The IdFormat of received and returned MediaItem ids.
+     * @param index The MediaIndex to list the directory through or null.
+     * @param metaData The MetaDataManager to keep metadata in, may be shared
+     * between FileMediaManager instances.
+     * @throws FileNotFoundException
+     */
+    public FileMediaManager(File dir, IdFormat idFormat, MediaIndex index, MetaDataManager metaData) throws FileNotFoundException {
+        this(dir, idFormat, index);
+        this.metaData = metaData;
+    }
+
+    /**
+     * Restores the transient state of a deserialized manager, listeners
+     * registered before it was serialized are not kept.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<>();
+        directoryListeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Enables parallel scanning. When set, listMediaItems reads the attributes
+     * of the listed files in chunks on the executor instead of one after 
+     * another, which hides the per-file latency of network file systems. The
+     * listing order does not depend on the executor.
+     * @param scanExecutor The executor to scan on or null to scan sequentially.
+     */
+    public void setScanExecutor(ExecutorService scanExecutor) {
+        this.scanExecutor = scanExecutor;
+    }
+
+    /**
+     * @param deduplicateOnCreate true to not create items whose content 
+     * equals an existing item of the directory, the id of a created item is
+     * then set to the id of the existing item instead.
+     */
+    public void setDeduplicateOnCreate(boolean deduplicateOnCreate) {
+        this.deduplicateOnCreate = deduplicateOnCreate;
+    }
+
+    public void addMediaItemListener(MediaItemListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeMediaItemListener(MediaItemListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addDirectoryChangeListener(DirectoryChangeListener listener) {
+        directoryListeners.add(listener);
+    }
+
+    public void removeDirectoryChangeListener(DirectoryChangeListener listener) {
+        directoryListeners.remove(listener);
+    }
+
+    /**
+     * Starts watching the directory with a WatchService. Files created, 
+     * modified or deleted by other programs are reported to the 
+     * MediaItemListeners and subdirectory changes to the 
+     * DirectoryChangeListeners, on a daemon thread.
+     * @throws IOException If the directory can not be watched.
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        final WatchService ws = dir.toPath().getFileSystem().newWatchService();
+        dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        childDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        listChildDirs();
+        watchService = ws;
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                watch(ws);
+            }
+        }, "media-watcher " + dir);
+        t.setDaemon(true);
+        t.start();
+        logger.log(Level.FINE, "Watching {0}", dir);
+    }
+
+    public synchronized void stopWatching() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Unable to close the watch service of " + dir, ex);
+            }
+            watchService = null;
+        }
+        liveGroups = null;
+    }
+
+    private void listChildDirs() {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    childDirs.add(child.getName());
+                }
+            }
+        }
+    }
+
+    private void watch(WatchService ws) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = ws.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    logger.log(Level.INFO, "Lost change events for {0}", dir);
+                    if (index != null) {
+                        index.invalidate(dir);
+                    }
+                    synchronized (this) {
+                        liveGroups = null;
+                    }
+                    listChildDirs();
+                    for (DirectoryChangeListener listener : directoryListeners) {
+                        listener.changesLost(dir);
+                    }
+                } else {
+                    fireChange(event.kind(), dir.toPath().resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                // the directory itself is gone
+                return;
+            }
+        }
+    }
+
+    private void fireChange(WatchEvent.Kind<?> kind, Path p) {
+        File f = p.toFile();
+        boolean media = MediaType.forName(f.getName()) != MediaType.OTHER;
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (childDirs.remove(f.getName())) {
+                for (DirectoryChangeListener listener : directoryListeners) {
+                    listener.directoryDeleted(f);
+                }
+            } else if (media) {
+                invalidateIndex(f);
+                String id = generateMediaId(f);
+                removeLive(id);
+                for (MediaItemListener listener : listeners) {
+                    listener.mediaItemDeleted(id);
+                }
+            }
+            return;
+        }
+        if (media) {
+            MediaItem mediaItem = readMediaItem(p);
+            if (mediaItem == null) {
+                return;
+            }
+            invalidateIndex(f);
+            putLive(mediaItem);
+            for (MediaItemListener listener : listeners) {
+                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    listener.mediaItemCreated(mediaItem);
+                } else {
+                    listener.mediaItemUpdated(mediaItem);
+                }
+            }
+        } else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            try {
+                if (FileStats.read(p).isDirectory()) {
+                    childDirs.add(f.getName());
+                    for (DirectoryChangeListener listener : directoryListeners) {
+                        listener.directoryCreated(f);
+                    }
+                }
+            } catch (IOException ex) {
+                // already gone again
+            }
+        }
+    }
+
+    /**
+     * Creates an item from a stream. The content is written to a temporary 
+     * file which is moved into place once complete, so a broken stream does 
+     * not leave a partial item behind.
+     * @throws FileAlreadyExistsException If the item already exists.
+     */
     @Override
     public void createMediaItem(MediaItem item, InputStream content) throws IOException {
         File f = new File(dir, item.getId());
-        String realId = generateMediaId(f);
-        item.setId(realId);
-        Files.copy(content, f.toPath());
-        //TODO Use MetaDataManager to save title, tags, and date
+        File stored = copyNew(f, content);
+        item.setId(generateMediaId(stored));
+        if (stored == f) {
+            finishCreate(f, item, false);
+        }
+    }
+
+    private File copyNew(File f, InputStream content) throws IOException {
+        if (f.exists()) {
+            throw new FileAlreadyExistsException(f.getPath());
+        }
+        try {
+            return ingest(f, Channels.newChannel(content), 0, null);
+        } catch (IOException ex) {
+            Files.deleteIfExists(partFile(f).toPath());
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates or replaces an item from a channel without copying the content 
+     * through heap buffers: the bytes are moved with FileChannel.transferFrom,
+     * which the operating system performs without a user space copy when the
+     * source is a file. The content is written to a hidden partial file which
+     * is moved into place atomically once complete. When the transfer fails
+     * the partial file is kept, and the ingest can be resumed with the offset
+     * returned by getIngestedLength and a source positioned at that offset.
+     * @param item The item, its id is the file name in the managed directory.
+     * @param source The content, read from its current position to its end.
+     * @param offset The number of bytes already ingested, 0 to start over.
+     * @param digest A digest updated with the whole content, including bytes
+     * ingested before a resume, or null. Computing a digest, or hashing the
+     * content to deduplicate it, reads the bytes through a direct buffer
+     * instead of transferring them.
+     * @throws IOException If the transfer fails, the partial file is kept.
+     */
+    public void ingestMediaItem(MediaItem item, ReadableByteChannel source, long offset, MessageDigest digest) throws IOException {
+        File f = new File(dir, item.getId());
+        boolean replaced = f.exists();
+        File stored = ingest(f, source, offset, digest);
+        item.setId(generateMediaId(stored));
+        if (stored == f) {
+            finishCreate(f, item, replaced);
+        }
+    }
+
+    /**
+     * @param name The file name of an item being ingested.
+     * @return The number of bytes a failed ingest left in its partial file,
+     * the offset to resume from.
+     */
+    public long getIngestedLength(String name) {
+        return partFile(new File(dir, name)).length();
+    }
+
+    /**
+     * Deletes the partial file of a failed ingest which will not be resumed.
+     * @param name The file name of the item.
+     */
+    public void discardIngest(String name) throws IOException {
+        Files.deleteIfExists(partFile(new File(dir, name)).toPath());
+    }
+
+    private static File partFile(File f) {
+        // hidden, and not a media type so listings skip it
+        return new File(f.getParentFile(), "." + f.getName() + ".part");
+    }
+
+    /**
+     * @return f, or an existing file with the same content when deduplicating
+     * on create, in which case f is not created.
+     */
+    private File ingest(File f, ReadableByteChannel source, long offset, MessageDigest digest) throws IOException {
+        File part = partFile(f);
+        if (offset > 0 && part.length() < offset) {
+            throw new IOException("Can not resume " + f.getName() + " at " + offset + ", only " + part.length() + " bytes were ingested");
+        }
+        // hashes the content for the duplicate check as it is written, the part file is not read back
+        DuplicateFinder.StreamHasher hasher = deduplicateOnCreate ? new DuplicateFinder.StreamHasher() : null;
+        try (FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            out.truncate(offset);
+            long position = offset;
+            if (digest == null && hasher == null) {
+                ByteBuffer probe = null;
+                while (true) {
+                    long transferred = out.transferFrom(source, position, INGEST_CHUNK_SIZE);
+                    if (transferred > 0) {
+                        position += transferred;
+                        continue;
+                    }
+                    // 0 is also returned by a source with nothing to read yet, only read tells the end
+                    if (probe == null) {
+                        probe = ByteBuffer.allocate(8 * 1024);
+                    }
+                    probe.clear();
+                    if (source.read(probe) < 0) {
+                        break;
+                    }
+                    probe.flip();
+                    while (probe.hasRemaining()) {
+                        position += out.write(probe, position);
+                    }
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                // hash the bytes ingested before the resume
+                long hashed = 0;
+                while (hashed < offset) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), offset - hashed));
+                    int read = out.read(buffer, hashed);
+                    if (read < 0) {
+                        throw new EOFException(part.getPath());
+                    }
+                    buffer.flip();
+                    update(digest, hasher, buffer);
+                    hashed += read;
+                }
+                while (true) {
+                    buffer.clear();
+                    if (source.read(buffer) < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    ByteBuffer hashView = buffer.duplicate();
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                    update(digest, hasher, hashView);
+                }
+            }
+            out.force(true);
+            if (out.size() != position) {
+                throw new IOException("Ingested " + position + " bytes of " + f.getName() + " but the partial file has " + out.size());
+            }
+        }
+        if (deduplicateOnCreate) {
+            File duplicate = new DuplicateFinder(index).findDuplicateOf(f.getParentFile(), hasher);
+            if (duplicate != null) {
+                logger.log(Level.FINE, "Not creating {0}, it duplicates {1}", new Object[]{f, duplicate});
+                Files.delete(part.toPath());
+                return duplicate;
+            }
+        }
+        Files.move(part.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return f;
+    }
+
+    private static void update(MessageDigest digest, DuplicateFinder.StreamHasher hasher, ByteBuffer bytes) {
+        if (digest != null) {
+            digest.update(bytes.duplicate());
+        }
+        if (hasher != null) {
+            hasher.update(bytes);
+        }
+    }
+
+    private void finishCreate(File f, MediaItem item, boolean replaced) throws IOException {
+        try {
+            if (metaData != null) {
+                metaData.put(f.getAbsolutePath(), item);
+            }
+        } finally {
+            // the file is there even if its metadata is not on disk
+            invalidateIndex(f);
+            putLive(item);
+            for (MediaItemListener listener : listeners) {
+                if (replaced) {
+                    listener.mediaItemUpdated(item);
+                } else {
+                    listener.mediaItemCreated(item);
+                }
+            }
+        }
     }
 
     @Override
     public MediaItem getMediaItem(String id) throws FileNotFoundException {
         File f = new File(hiddenLocationPrefix, id);
-        if (f == null || !f.isFile()) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = FileStats.read(f.toPath());
+        } catch (IOException ex) {
             throw new FileNotFoundException(id);
         }
-        //TODO Use MetaDataManager to get MediaItem
-        MediaItem mediaItem = null;
-        if (mediaItem == null) {
-            String title = f.getName();
-            mediaItem = new MediaItem(title, id, new Date(f.lastModified()));
+        if (!attrs.isRegularFile()) {
+            throw new FileNotFoundException(id);
         }
+        MediaItem mediaItem = new MediaItem(f.getName(), id, new Date(attrs.lastModifiedTime().toMillis()));
+        applyMetaData(mediaItem, f);
         return mediaItem;
     }
 
     @Override
-    public void updateMediaItem(MediaItem item) throws FileNotFoundException {
-        //TODO Use MetaDataManager to save title, tags, and date
+    public void updateMediaItem(MediaItem item) throws IOException {
         File f = new File(hiddenLocationPrefix, item.getId());
         if (f == null || !f.isFile()) {
             throw new FileNotFoundException(item.getId());
         }
         f.setLastModified(item.getDate().getTime());
+        try {
+            if (metaData != null) {
+                metaData.put(f.getAbsolutePath(), item);
+            }
+        } finally {
+            invalidateIndex(f);
+            putLive(item);
+            for (MediaItemListener listener : listeners) {
+                listener.mediaItemUpdated(item);
+            }
+        }
     }
 
     @Override
-    public void deleteMediaItem(String id) {
+    public void deleteMediaItem(String id) throws IOException {
         File f = new File(hiddenLocationPrefix, id);
         if (f != null && f.isFile()) {
-            f.delete();
+            // throws rather than reporting a file which is still there as deleted
+            Files.delete(f.toPath());
+            try {
+                if (metaData != null) {
+                    metaData.remove(f.getAbsolutePath());
+                }
+            } finally {
+                invalidateIndex(f);
+                removeLive(id);
+                for (MediaItemListener listener : listeners) {
+                    listener.mediaItemDeleted(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails the results of items whose metadata could not be written.
+     */
+    private static void failResults(List<MediaItemResult> results, Collection<MediaItem> items, IOException ex) {
+        Set<MediaItem> failed = Collections.newSetFromMap(new IdentityHashMap<MediaItem, Boolean>());
+        failed.addAll(items);
+        for (int i = 0; i < results.size(); i++) {
+            MediaItemResult result = results.get(i);
+            if (result.isSuccess() && failed.contains(result.getMediaItem())) {
+                results.set(i, new MediaItemResult(result.getId(), result.getMediaItem(), ex));
+            }
+        }
+    }
+
+    @Override
+    public List<MediaItemResult> createMediaItems(Map<MediaItem, InputStream> items) {
+        List<MediaItemResult> results = new ArrayList<>(items.size());
+        Map<String, MediaItem> created = new LinkedHashMap<>();
+        for (Map.Entry<MediaItem, InputStream> entry : items.entrySet()) {
+            MediaItem item = entry.getKey();
+            File f = new File(dir, item.getId());
+            try {
+                File stored = copyNew(f, entry.getValue());
+                item.setId(generateMediaId(stored));
+                if (stored == f) {
+                    created.put(f.getAbsolutePath(), item);
+                }
+                results.add(new MediaItemResult(item.getId(), item, null));
+            } catch (IOException ex) {
+                results.add(new MediaItemResult(item.getId(), null, ex));
+            }
+        }
+        if (metaData != null) {
+            try {
+                metaData.putAll(created);
+            } catch (IOException ex) {
+                failResults(results, created.values(), ex);
+            }
+        }
+        if (index != null && !created.isEmpty()) {
+            index.invalidate(dir);
+        }
+        for (MediaItem item : created.values()) {
+            putLive(item);
+            for (MediaItemListener listener : listeners) {
+                listener.mediaItemCreated(item);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets many items. Items of the managed directory are looked up in the 
+     * MediaIndex, which lists the directory at most once, instead of reading
+     * the attributes of every file.
+     */
+    @Override
+    public List<MediaItemResult> getMediaItems(Collection<String> ids) {
+        Map<String, MediaIndex.Entry> indexed = new HashMap<>();
+        if (index != null) {
+            for (MediaIndex.Entry entry : index.list(dir)) {
+                indexed.put(entry.getName(), entry);
+            }
+        }
+        File absoluteDir = dir.getAbsoluteFile();
+        List<MediaItemResult> results = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            File f = new File(hiddenLocationPrefix, id);
+            MediaIndex.Entry entry = absoluteDir.equals(f.getAbsoluteFile().getParentFile()) ? indexed.get(f.getName()) : null;
+            if (entry != null) {
+                MediaItem mediaItem = new MediaItem(entry.getTitle(), id, new Date(entry.getModified()));
+                applyMetaData(mediaItem, f);
+                results.add(new MediaItemResult(id, mediaItem, null));
+            } else {
+                try {
+                    results.add(new MediaItemResult(id, getMediaItem(id), null));
+                } catch (FileNotFoundException ex) {
+                    results.add(new MediaItemResult(id, null, ex));
+                }
+            }
         }
-        //TODO Delete title, tags, and date info using MetaDataManager
+        return results;
     }
 
     @Override
-    public List<MediaGroup> listMediaItems(MediaQualifier filter) throws FileNotFoundException {
+    public List<MediaItemResult> updateMediaItems(Collection<MediaItem> items) {
+        List<MediaItemResult> results = new ArrayList<>(items.size());
+        Map<String, MediaItem> updated = new LinkedHashMap<>();
+        Set<File> dirs = new HashSet<>();
+        for (MediaItem item : items) {
+            File f = new File(hiddenLocationPrefix, item.getId());
+            // setLastModified alone also succeeds on directories
+            if (!f.isFile() || !f.setLastModified(item.getDate().getTime())) {
+                results.add(new MediaItemResult(item.getId(), null, new FileNotFoundException(item.getId())));
+                continue;
+            }
+            updated.put(f.getAbsolutePath(), item);
+            dirs.add(f.getAbsoluteFile().getParentFile());
+            results.add(new MediaItemResult(item.getId(), item, null));
+        }
+        if (metaData != null) {
+            try {
+                metaData.putAll(updated);
+            } catch (IOException ex) {
+                failResults(results, updated.values(), ex);
+            }
+        }
+        if (index != null) {
+            for (File d : dirs) {
+                index.invalidate(d);
+            }
+        }
+        for (MediaItem item : updated.values()) {
+            putLive(item);
+            for (MediaItemListener listener : listeners) {
+                listener.mediaItemUpdated(item);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<MediaItemResult> deleteMediaItems(Collection<String> ids) {
+        List<MediaItemResult> results = new ArrayList<>(ids.size());
+        List<String> deletedPaths = new ArrayList<>();
+        List<String> deletedIds = new ArrayList<>();
+        Set<File> dirs = new HashSet<>();
+        for (String id : ids) {
+            File f = new File(hiddenLocationPrefix, id);
+            try {
+                // deleteIfExists reports missing files, only directories need a check
+                if (!Files.isDirectory(f.toPath()) && Files.deleteIfExists(f.toPath())) {
+                    deletedPaths.add(f.getAbsolutePath());
+                    deletedIds.add(id);
+                    dirs.add(f.getAbsoluteFile().getParentFile());
+                    results.add(new MediaItemResult(id, null, null));
+                } else {
+                    results.add(new MediaItemResult(id, null, new FileNotFoundException(id)));
+                }
+            } catch (IOException ex) {
+                results.add(new MediaItemResult(id, null, ex));
+            }
+        }
+        if (metaData != null) {
+            try {
+                metaData.removeAll(deletedPaths);
+            } catch (IOException ex) {
+                // the files are gone, the removals stay queued for the next metadata write
+                logger.log(Level.WARNING, "Unable to write the removal of " + deletedPaths.size() + " metadata records", ex);
+            }
+        }
+        if (index != null) {
+            for (File d : dirs) {
+                index.invalidate(d);
+            }
+        }
+        for (String id : deletedIds) {
+            removeLive(id);
+            for (MediaItemListener listener : listeners) {
+                listener.mediaItemDeleted(id);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Lists the directory. While the directory is watched the sorted groups
+     * are kept and updated item by item, so listing again in the same order
+     * does not scan or sort the directory.
+     */
+    @Override
+    public List<MediaGroup> listMediaItems(MediaQualifier filter) throws IOException {
+        if (!filter.getTags().isEmpty() || filter.isCollapseDuplicates() || filter.getMaxDepth() > 0) {
+            List<MediaGroup> groups = new ArrayList<>();
+            if (filter.getTags().isEmpty() && filter.getMaxDepth() > 0) {
+                // the recursive scan merges its runs in order
+                groupItems(groups, listFiltered(filter), filter.getSortOrder());
+            } else {
+                sortAndGroup(groups, listFiltered(filter), filter.getSortOrder());
+            }
+            return groups;
+        }
+        long listedChangeCount;
+        synchronized (this) {
+            if (liveGroups != null && liveGroups.getOrder() == filter.getSortOrder() && liveTypes.equals(filter.getTypes())) {
+                return liveGroups.getGroups();
+            }
+            listedChangeCount = changeCount;
+        }
         List<MediaGroup> groups = new ArrayList<>();
+        List<MediaItem> items = listAll(filter);
+        synchronized (this) {
+            // a change during the listing may be missing from the items
+            if (watchService != null && changeCount == listedChangeCount) {
+                liveGroups = new SortedMediaGroups(filter.getSortOrder());
+                liveGroups.addAll(items);
+                liveTypes = new ArrayList<>(filter.getTypes());
+                return liveGroups.getGroups();
+            }
+        }
+        sortAndGroup(groups, items, filter.getSortOrder());
+        return groups;
+    }
 
+    private List<MediaItem> listAll(MediaQualifier filter) throws InterruptedIOException {
+        if (index != null) {
+            return listIndexed(filter);
+        }
         // MediaTypeFilenameFilter uses ids(filenames) to restrict the type of items listed
-        File[] files = dir.listFiles(new MediaTypeFilenameFilter(filter));
+        List<Path> candidates;
+        try {
+            candidates = new MediaTypeFilenameFilter(filter).listCandidates(dir);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to list " + dir, ex);
+            return new ArrayList<>();
+        }
+        return scanExecutor != null ? scanParallel(candidates) : scan(candidates);
+    }
+
+    /**
+     * Lists the items of a filter with tags, collapsed duplicates or
+     * subdirectories.
+     */
+    private List<MediaItem> listFiltered(MediaQualifier filter) throws InterruptedIOException {
+        List<MediaItem> items;
+        if (!filter.getTags().isEmpty()) {
+            items = listTagged(filter);
+        } else if (filter.getMaxDepth() > 0) {
+            items = listRecursive(filter);
+        } else {
+            items = listAll(filter);
+        }
+        return filter.isCollapseDuplicates() ? collapseDuplicates(items) : items;
+    }
+
+    /**
+     * Keeps one item, the one with the smallest id, of each set of items with
+     * equal content and sets the content hash of the kept items.
+     */
+    private List<MediaItem> collapseDuplicates(List<MediaItem> items) {
+        Map<File, MediaItem> byFile = new HashMap<>();
+        for (MediaItem mediaItem : items) {
+            byFile.put(new File(hiddenLocationPrefix, mediaItem.getId()).getAbsoluteFile(), mediaItem);
+        }
+        Map<File, String> hashes = new DuplicateFinder(index).findDuplicates(byFile.keySet());
+        if (hashes.isEmpty()) {
+            return items;
+        }
+        Map<String, MediaItem> kept = new HashMap<>();
+        for (Map.Entry<File, String> entry : hashes.entrySet()) {
+            MediaItem mediaItem = byFile.get(entry.getKey());
+            MediaItem other = kept.get(entry.getValue());
+            if (other == null || mediaItem.getId().compareTo(other.getId()) < 0) {
+                kept.put(entry.getValue(), mediaItem);
+            }
+        }
+        List<MediaItem> collapsed = new ArrayList<>(items.size() - hashes.size() + kept.size());
+        for (MediaItem mediaItem : items) {
+            String hash = hashes.get(new File(hiddenLocationPrefix, mediaItem.getId()).getAbsoluteFile());
+            if (hash == null) {
+                collapsed.add(mediaItem);
+            } else if (kept.get(hash) == mediaItem) {
+                mediaItem.setContentHash(hash);
+                collapsed.add(mediaItem);
+            }
+        }
+        logger.log(Level.FINE, "Collapsed {0} duplicates in {1}", new Object[]{items.size() - collapsed.size(), dir});
+        return collapsed;
+    }
+
+    private synchronized void putLive(MediaItem item) {
+        changeCount++;
+        if (liveGroups != null && liveTypes.contains(item.getType())) {
+            liveGroups.put(item);
+        }
+    }
+
+    private synchronized void removeLive(String id) {
+        changeCount++;
+        if (liveGroups != null) {
+            liveGroups.remove(id);
+        }
+    }
 
+    private List<MediaItem> listIndexed(MediaQualifier filter) {
         List<MediaItem> items = new ArrayList<>();
-        if (files != null) {
-            for (File f : files) {
-                logger.log(Level.FINEST, "Found file {0}", f.getAbsolutePath());
-                String id = generateMediaId(f);
-                MediaItem mediaItem = getMediaItem(id);
-                items.add(mediaItem);
+        for (MediaIndex.Entry entry : index.list(dir)) {
+            if (filter.getTypes().contains(entry.getType())) {
+                items.add(toMediaItem(entry));
             }
-            switch (filter.getSortOrder()) {
-                case DATE_DESC:
-                    sortItemsByDescDate(items);
-                    groupItemsByDate(groups, items);
-                    break;
-                case DATE_ASC:
-                    sortItemsByAscDate(items);
-                    groupItemsByDate(groups, items);
-                    break;
-                case TITLE_DESC:
-                    sortItemsByDescTitle(items);
-                    groupItemsByTitle(groups, items);
-                    break;
-                case TITLE_ASC:
-                    sortItemsByAscTitle(items);
-                    groupItemsByTitle(groups, items);
-                    break;
+        }
+        return items;
+    }
+
+    private MediaItem toMediaItem(MediaIndex.Entry entry) {
+        File f = new File(dir, entry.getName());
+        MediaItem mediaItem = new MediaItem(entry.getTitle(), generateMediaId(f), new Date(entry.getModified()));
+        applyMetaData(mediaItem, f);
+        return mediaItem;
+    }
+
+    /**
+     * Lists the items carrying the tags of the filter through the tag index of
+     * the MetaDataManager, so only the matching files are examined.
+     */
+    private List<MediaItem> listTagged(MediaQualifier filter) {
+        List<MediaItem> items = new ArrayList<>();
+        if (metaData == null) {
+            // tags are only kept by a MetaDataManager
+            return items;
+        }
+        File absoluteDir = dir.getAbsoluteFile();
+        boolean matchAll = filter.getTagMatch() == MediaQualifier.TagMatch.ALL;
+        for (String path : metaData.findByTags(filter.getTags(), matchAll)) {
+            File f = new File(path);
+            if (isWithin(f, absoluteDir, filter.getMaxDepth()) && filter.getTypes().contains(MediaType.forName(f.getName()))) {
+                MediaItem mediaItem = readMediaItem(f.toPath());
+                if (mediaItem != null) {
+                    items.add(mediaItem);
+                }
             }
         }
-        return groups;
+        return items;
     }
 
-    private String generateMediaId(File f) {
-        String id = f.getAbsolutePath();
-        //when ids are relative paths they always use forwards slashes
-        if (hiddenLocationPrefix != null) {
-            id = id.replaceFirst(Matcher.quoteReplacement(hiddenLocationPrefix), "");
-            id = id.replaceAll(Matcher.quoteReplacement(File.separator), "/");
+    private static boolean isWithin(File f, File dir, int maxDepth) {
+        File parent = f.getParentFile();
+        for (int depth = 0; parent != null && depth <= maxDepth; depth++) {
+            if (parent.equals(dir)) {
+                return true;
+            }
+            parent = parent.getParentFile();
         }
-        return id;
+        return false;
     }
 
-    private void sortItemsByDescDate(List<MediaItem> items) {
-        Collections.sort(items, new Comparator<MediaItem>() {
+    /**
+     * Lists the directory and its subdirectories down to the depth of the
+     * filter. Subdirectories are scanned in parallel as ForkJoin tasks, each
+     * directory yields a run sorted in the filter order and the runs are
+     * merged once into the result. Hidden subdirectories are skipped.
+     */
+    private List<MediaItem> listRecursive(MediaQualifier filter) {
+        Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+        try {
+            Object rootKey = FileStats.read(dir.toPath()).fileKey();
+            if (rootKey != null) {
+                visited.add(rootKey);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to list " + dir, ex);
+            return new ArrayList<>();
+        }
+        List<List<MediaItem>> runs = ForkJoinPool.commonPool().invoke(
+                new ScanTask(dir.toPath(), 0, filter, new MediaTypeFilenameFilter(filter), visited));
+        return mergeRuns(runs, filter.getSortOrder().getComparator());
+    }
+
+    /**
+     * Merges sorted runs with a heap holding the head of each run.
+     */
+    private static List<MediaItem> mergeRuns(List<List<MediaItem>> runs, final Comparator<MediaItem> order) {
+        int total = 0;
+        for (List<MediaItem> run : runs) {
+            total += run.size();
+        }
+        if (runs.size() == 1) {
+            return runs.get(0);
+        }
+        List<MediaItem> merged = new ArrayList<>(total);
+        final List<Iterator<MediaItem>> iterators = new ArrayList<>(runs.size());
+        final List<MediaItem> heads = new ArrayList<>(runs.size());
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Integer>() {
 
             @Override
-            public int compare(MediaItem o1, MediaItem o2) {
-                if (o1.getDate().getTime() > o2.getDate().getTime()) {
-                    return -1;
-                } else if (o1.getDate().getTime() < o2.getDate().getTime()) {
-                    return 1;
-                } else {
-                    return o1.getId().compareTo(o2.getId());
-                }
+            public int compare(Integer o1, Integer o2) {
+                return order.compare(heads.get(o1), heads.get(o2));
             }
         });
+        for (List<MediaItem> run : runs) {
+            Iterator<MediaItem> it = run.iterator();
+            iterators.add(it);
+            heads.add(it.hasNext() ? it.next() : null);
+            if (heads.get(heads.size() - 1) != null) {
+                heap.add(heads.size() - 1);
+            }
+        }
+        while (!heap.isEmpty()) {
+            int run = heap.poll();
+            merged.add(heads.get(run));
+            Iterator<MediaItem> it = iterators.get(run);
+            if (it.hasNext()) {
+                heads.set(run, it.next());
+                heap.add(run);
+            }
+        }
+        return merged;
     }
 
-    private void sortItemsByAscDate(List<MediaItem> items) {
-        Collections.sort(items, new Comparator<MediaItem>() {
+    /**
+     * Scans one directory and forks a task per subdirectory, returning the
+     * sorted runs of the whole subtree.
+     */
+    private class ScanTask extends RecursiveTask<List<List<MediaItem>>> {
 
-            @Override
-            public int compare(MediaItem o1, MediaItem o2) {
-                if (o1.getDate().getTime() < o2.getDate().getTime()) {
-                    return -1;
-                } else if (o1.getDate().getTime() > o2.getDate().getTime()) {
-                    return 1;
-                } else {
-                    return o1.getId().compareTo(o2.getId());
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final int depth;
+        private final MediaQualifier filter;
+        private final MediaTypeFilenameFilter nameFilter;
+        private final Set<Object> visited;
+
+        ScanTask(Path dir, int depth, MediaQualifier filter, MediaTypeFilenameFilter nameFilter, Set<Object> visited) {
+            this.dir = dir;
+            this.depth = depth;
+            this.filter = filter;
+            this.nameFilter = nameFilter;
+            this.visited = visited;
+        }
+
+        @Override
+        protected List<List<MediaItem>> compute() {
+            boolean descend = depth < filter.getMaxDepth();
+            List<MediaItem> items = new ArrayList<>();
+            List<ScanTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path p : stream) {
+                    String name = p.getFileName().toString();
+                    boolean media = nameFilter.getType(name) != null;
+                    if (!media && (!descend || name.startsWith("."))) {
+                        // only media files and subdirectories need a stat
+                        continue;
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = FileStats.read(p, LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isSymbolicLink()) {
+                            attrs = FileStats.read(p);
+                            if (attrs.isDirectory() && !filter.isFollowLinks()) {
+                                continue;
+                            }
+                        }
+                    } catch (IOException ex) {
+                        // deleted while listing or a dangling link
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        if (descend && (attrs.fileKey() == null || visited.add(attrs.fileKey()))) {
+                            subtasks.add(new ScanTask(p, depth + 1, filter, nameFilter, visited));
+                        }
+                    } else if (media && attrs.isRegularFile()) {
+                        items.add(toMediaItem(p, attrs));
+                    }
                 }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Unable to list " + dir, ex);
             }
-        });
+            invokeAll(subtasks);
+            MediaSorter.sort(items, filter.getSortOrder(), false);
+            List<List<MediaItem>> runs = new ArrayList<>();
+            if (!items.isEmpty()) {
+                runs.add(items);
+            }
+            for (ScanTask subtask : subtasks) {
+                runs.addAll(subtask.join());
+            }
+            return runs;
+        }
     }
 
-    private void groupItemsByDate(List<MediaGroup> groups, List<MediaItem> items) {
-        String previousDate = "notequal";
-        MediaGroup group = null;
-        for (MediaItem mediaItem : items) {
-            String date = SimpleDateFormat.getDateInstance().format(mediaItem.getDate());
-            if (!previousDate.equals(date)) {
-                previousDate = date;
-                group = new MediaGroup(date);
-                groups.add(group);
+    private void applyMetaData(MediaItem mediaItem, File f) {
+        if (metaData == null) {
+            return;
+        }
+        MetaDataManager.Record record = metaData.get(f.getAbsolutePath());
+        if (record != null) {
+            if (record.getTitle() != null) {
+                mediaItem.setTitle(record.getTitle());
+            }
+            mediaItem.setTags(record.getTags());
+            if (record.getDate() != Long.MIN_VALUE) {
+                mediaItem.setDate(new Date(record.getDate()));
             }
-            group.getItems().add(mediaItem);
         }
     }
 
-    private void sortItemsByAscTitle(List<MediaItem> items) {
-        Collections.sort(items, new Comparator<MediaItem>() {
+    private List<MediaItem> scan(List<Path> candidates) {
+        List<MediaItem> items = new ArrayList<>(candidates.size());
+        for (Path p : candidates) {
+            MediaItem mediaItem = readMediaItem(p);
+            if (mediaItem != null) {
+                items.add(mediaItem);
+            }
+        }
+        return items;
+    }
 
-            @Override
-            public int compare(MediaItem o1, MediaItem o2) {
-                int order = o1.getTitle().compareToIgnoreCase(o2.getTitle());
-                if (order == 0) {
-                    return o1.getId().compareTo(o2.getId());
-                }
-                return order;
+    /**
+     * Builds the MediaItem of a listed file from a single attribute read.
+     * @return The MediaItem or null if p is not a regular file.
+     */
+    private MediaItem readMediaItem(Path p) {
+        logger.log(Level.FINEST, "Found file {0}", p);
+        try {
+            BasicFileAttributes attrs = FileStats.read(p);
+            if (!attrs.isRegularFile()) {
+                return null;
             }
-        });
+            return toMediaItem(p, attrs);
+        } catch (IOException ex) {
+            // deleted while listing
+            return null;
+        }
     }
 
-    private void sortItemsByDescTitle(List<MediaItem> items) {
-        Collections.sort(items, new Comparator<MediaItem>() {
+    private MediaItem toMediaItem(Path p, BasicFileAttributes attrs) {
+        MediaItem mediaItem = new MediaItem(p.getFileName().toString(), generateMediaId(p.toFile()), new Date(attrs.lastModifiedTime().toMillis()));
+        applyMetaData(mediaItem, p.toFile());
+        return mediaItem;
+    }
 
-            @Override
-            public int compare(MediaItem o1, MediaItem o2) {
-                int order = o1.getTitle().compareToIgnoreCase(o2.getTitle());
-                if (order == 0) {
-                    return o1.getId().compareTo(o2.getId());
+    /**
+     * Lists a page of items without materializing the whole directory. The
+     * continuation token holds the sort key and id of the last item of the
+     * previous page; items are streamed from a DirectoryStream (or the
+     * MediaIndex) and only the items after that key are offered to a bounded
+     * priority queue holding the first pageSize of them in the requested
+     * order. Since the order breaks ties on the id, a page continues after
+     * the last item even if items were added or removed in between.
+     */
+    @Override
+    public MediaPage listMediaItems(MediaQualifier filter, int pageSize, String continuationToken) throws IOException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        MediaItem after = continuationToken != null ? parseToken(continuationToken, filter.getSortOrder()) : null;
+        Comparator<MediaItem> order = filter.getSortOrder().getComparator();
+        // max-heap of the best items so far, the head is the first to be dropped
+        PriorityQueue<MediaItem> best = new PriorityQueue<>(Math.min(pageSize, 1024) + 1, Collections.reverseOrder(order));
+        int total = 0;
+
+        if (!filter.getTags().isEmpty() || filter.isCollapseDuplicates() || filter.getMaxDepth() > 0) {
+            for (MediaItem mediaItem : listFiltered(filter)) {
+                total += offerAfter(best, mediaItem, after, pageSize, order);
+            }
+        } else if (index != null) {
+            for (MediaIndex.Entry entry : index.list(dir)) {
+                if (filter.getTypes().contains(entry.getType())) {
+                    total += offerAfter(best, toMediaItem(entry), after, pageSize, order);
                 }
-                if (order > 0) {
-                    order = -1;
-                } else {
-                    order = 1;
+            }
+        } else {
+            final MediaTypeFilenameFilter nameFilter = new MediaTypeFilenameFilter(filter);
+            DirectoryStream.Filter<Path> candidates = new DirectoryStream.Filter<Path>() {
+
+                @Override
+                public boolean accept(Path entry) {
+                    return nameFilter.getType(entry.getFileName().toString()) != null;
                 }
-                return order;
+            };
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath(), candidates)) {
+                for (Path p : stream) {
+                    MediaItem mediaItem = readMediaItem(p);
+                    if (mediaItem != null) {
+                        total += offerAfter(best, mediaItem, after, pageSize, order);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Unable to list " + dir, ex);
             }
-        });
+        }
+
+        List<MediaItem> items = new ArrayList<>(best);
+        MediaSorter.sort(items, filter.getSortOrder());
+        List<MediaGroup> groups = new ArrayList<>();
+        groupItems(groups, items, filter.getSortOrder());
+        String token = total > pageSize ? createToken(items.get(items.size() - 1), filter.getSortOrder()) : null;
+        return new MediaPage(groups, token);
+    }
+
+    /**
+     * Offers an item to the page if it comes after the continuation key.
+     * @return 1 if the item comes after the key, 0 otherwise.
+     */
+    private static int offerAfter(PriorityQueue<MediaItem> best, MediaItem item, MediaItem after, int limit, Comparator<MediaItem> order) {
+        if (after != null && order.compare(item, after) <= 0) {
+            return 0;
+        }
+        offerBounded(best, item, limit, order);
+        return 1;
+    }
+
+    /**
+     * Encodes the sort key and id of the last item of a page, the order is
+     * included so a token is not used with another order.
+     */
+    private static String createToken(MediaItem last, MediaOrder order) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return order.name() + "." + last.getDate().getTime()
+                + "." + encoder.encodeToString(last.getTitle().getBytes(StandardCharsets.UTF_8))
+                + "." + encoder.encodeToString(last.getId().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return An item holding the sort key and id of a continuation token.
+     */
+    private static MediaItem parseToken(String token, MediaOrder order) {
+        String[] parts = token.split("\\.", -1);
+        try {
+            if (parts.length != 4 || !parts[0].equals(order.name())) {
+                throw new IllegalArgumentException("Invalid continuation token " + token);
+            }
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            return new MediaItem(new String(decoder.decode(parts[2]), StandardCharsets.UTF_8),
+                    new String(decoder.decode(parts[3]), StandardCharsets.UTF_8), new Date(Long.parseLong(parts[1])));
+        } catch (IllegalArgumentException ex) {
+            // also thrown by Base64 and parseLong
+            throw new IllegalArgumentException("Invalid continuation token " + token, ex);
+        }
+    }
+
+    /**
+     * Scans the candidates in chunks on the scan executor.
+     * @throws InterruptedIOException If interrupted, the scan is cancelled
+     * rather than returning part of the items.
+     */
+    private List<MediaItem> scanParallel(List<Path> candidates) throws InterruptedIOException {
+        List<Future<List<MediaItem>>> futures = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i += SCAN_CHUNK_SIZE) {
+            final List<Path> chunk = candidates.subList(i, Math.min(candidates.size(), i + SCAN_CHUNK_SIZE));
+            futures.add(scanExecutor.submit(new Callable<List<MediaItem>>() {
+
+                @Override
+                public List<MediaItem> call() {
+                    return scan(chunk);
+                }
+            }));
+        }
+        // chunks are collected in submission order so the result is deterministic
+        List<MediaItem> items = new ArrayList<>(candidates.size());
+        try {
+            for (Future<List<MediaItem>> future : futures) {
+                items.addAll(future.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            for (Future<List<MediaItem>> future : futures) {
+                future.cancel(true);
+            }
+            throw new InterruptedIOException("Scan of " + dir + " interrupted");
+        } catch (ExecutionException ee) {
+            for (Future<List<MediaItem>> future : futures) {
+                future.cancel(true);
+            }
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new IllegalStateException(ee.getCause());
+        }
+        return items;
     }
 
-    private void groupItemsByTitle(List<MediaGroup> groups, List<MediaItem> items) {
-        char previousLetter = '\u0000';
+    private static void offerBounded(PriorityQueue<MediaItem> best, MediaItem item, int limit, Comparator<MediaItem> order) {
+        if (best.size() < limit) {
+            best.add(item);
+        } else if (order.compare(item, best.peek()) < 0) {
+            best.poll();
+            best.add(item);
+        }
+    }
+
+    private void invalidateIndex(File f) {
+        if (index != null) {
+            index.invalidate(f.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    private void sortAndGroup(List<MediaGroup> groups, List<MediaItem> items, MediaOrder order) {
+        MediaSorter.sort(items, order);
+        groupItems(groups, items, order);
+    }
+
+    private void groupItems(List<MediaGroup> groups, List<MediaItem> items, MediaOrder order) {
+        ZoneId zone = ZoneId.systemDefault();
+        long previousKey = 0;
         MediaGroup group = null;
         for (MediaItem mediaItem : items) {
-            char letter = mediaItem.getTitle().toUpperCase().charAt(0);
-            if (previousLetter != letter) {
-                previousLetter = letter;
-                group = new MediaGroup(Character.toString(letter));
+            long key = order.getGroupKey(mediaItem, zone);
+            if (group == null || key != previousKey) {
+                previousKey = key;
+                group = new MediaGroup(order.getGroupTitle(key));
                 groups.add(group);
             }
             group.getItems().add(mediaItem);
         }
     }
-}
\ No newline at end of file
+
+    private String generateMediaId(File f) {
+        String id = f.getAbsolutePath();
+        //when ids are relative paths they always use forwards slashes
+        if (hiddenLocationPrefix != null) {
+            if (id.startsWith(hiddenLocationPrefix)) {
+                id = id.substring(hiddenLocationPrefix.length());
+            }
+            id = id.replace(File.separatorChar, '/');
+        }
+        return id;
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.media;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads file attributes for the media package and counts the reads, so the
+ * number of stat calls a listing costs can be checked.
+ */
+public final class FileStats {
+
+    private static final AtomicLong reads = new AtomicLong();
+
+    private FileStats() {
+    }
+
+    /**
+     * Reads the attributes of a file with a single stat, following links.
+     * @param p The file.
+     * @return The attributes.
+     * @throws IOException If the file does not exist or can not be read.
+     */
+    public static BasicFileAttributes read(Path p, LinkOption... options) throws IOException {
+        reads.incrementAndGet();
+        return Files.readAttributes(p, BasicFileAttributes.class, options);
+    }
+
+    /**
+     * @return The number of attribute reads since startup or the last reset.
+     */
+    public static long getReadCount() {
+        return reads.get();
+    }
+
+    public static void resetReadCount() {
+        reads.set(0);
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.media;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent per-directory index of media files. Each indexed directory is
+ * stored as a small binary file holding the directory modification time and
+ * one entry (name, title, modification time, size, type and cached content
+ * hashes) per media file. Tags are kept by the MetaDataManager.
+ * Listing a directory whose modification time has not changed is served
+ * straight from the index; otherwise only the files whose modification time or
+ * size changed are re-examined. A directory modified within MTIME_GRANULARITY
+ * of its scan may change again without a new modification time, so it is
+ * rescanned on the next list call. Each directory has its own lock, so a
+ * rescan does not block listing other directories.
+ */
+public class MediaIndex {
+
+    private static final Logger logger = Logger.getLogger("com.example.media.MediaIndex");
+    private static final int MAGIC = 0x4D494458; // "MIDX"
+    private static final int VERSION = 3;
+    // the coarsest modification time resolution in use, FAT has 2 seconds
+    private static final long MTIME_GRANULARITY = 2000;
+    private final File indexDir;
+    private final ConcurrentHashMap<String, DirectoryIndex> directories = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index which stores its files in the given directory.
+     * @param indexDir The directory holding the index files, created if needed.
+     */
+    public MediaIndex(File indexDir) {
+        if (indexDir == null) {
+            throw new IllegalArgumentException("Index directory must not be null");
+        }
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * @return The default index location, ~/.mediamanager/index
+     */
+    public static File getDefaultLocation() {
+        return new File(System.getProperty("user.home"), ".mediamanager" + File.separator + "index");
+    }
+
+    /**
+     * Returns the media entries of a directory, refreshing the index when the
+     * directory or any of its files changed since the last call.
+     * @param dir The directory to list.
+     * @return An unmodifiable list of entries for every media file in dir.
+     */
+    public List<Entry> list(File dir) {
+        String key = dir.getAbsolutePath();
+        synchronized (lockFor(key)) {
+            DirectoryIndex index = directories.get(key);
+            if (index == null) {
+                index = load(dir);
+            }
+            long dirModified = dir.lastModified();
+            if (index == null || index.modified != dirModified) {
+                index = rescan(dir, dirModified, index);
+                store(index);
+            }
+            directories.put(key, index);
+            return index.entries;
+        }
+    }
+
+    /**
+     * Forgets the cached state of a directory so that the next list call
+     * re-examines each file. Called when a file is changed in place, which
+     * does not update the modification time of its directory.
+     * @param dir The directory whose contents changed.
+     */
+    public void invalidate(File dir) {
+        String key = dir.getAbsolutePath();
+        synchronized (lockFor(key)) {
+            DirectoryIndex index = directories.get(key);
+            if (index == null) {
+                index = load(dir);
+            }
+            if (index != null) {
+                index.modified = Long.MIN_VALUE;
+                directories.put(key, index);
+            }
+        }
+    }
+
+    /**
+     * Caches content hashes computed for entries of a directory. Entries whose
+     * file changed since they were listed are ignored.
+     * @param dir The directory of the entries.
+     * @param hashed Entries returned by list, with hashes set by withHashes.
+     */
+    void updateHashes(File dir, Collection<Entry> hashed) {
+        if (hashed.isEmpty()) {
+            return;
+        }
+        Map<String, Entry> byName = new HashMap<>();
+        for (Entry entry : hashed) {
+            byName.put(entry.name, entry);
+        }
+        synchronized (lockFor(dir.getAbsolutePath())) {
+            DirectoryIndex index = directories.get(dir.getAbsolutePath());
+            if (index == null) {
+                return;
+            }
+            List<Entry> entries = new ArrayList<>(index.entries.size());
+            boolean changed = false;
+            for (Entry entry : index.entries) {
+                Entry update = byName.get(entry.name);
+                if (update != null && update.modified == entry.modified && update.size == entry.size) {
+                    entry = entry.withHashes(update.partialHash, update.contentHash);
+                    changed = true;
+                }
+                entries.add(entry);
+            }
+            if (changed) {
+                index = new DirectoryIndex(index.path, index.modified, Collections.unmodifiableList(entries));
+                directories.put(index.path, index);
+                store(index);
+            }
+        }
+    }
+
+    private Object lockFor(String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private DirectoryIndex rescan(File dir, long dirModified, DirectoryIndex previous) {
+        long scanned = System.currentTimeMillis();
+        Map<String, Entry> known = new HashMap<>();
+        if (previous != null) {
+            for (Entry entry : previous.entries) {
+                known.put(entry.name, entry);
+            }
+        }
+        List<Entry> entries = new ArrayList<>();
+        String[] names = dir.list();
+        int reused = 0;
+        if (names != null) {
+            for (String name : names) {
+                Entry entry = known.get(name);
+                MediaType type;
+                if (entry != null) {
+                    type = entry.type;
+                } else {
+                    // only media files are indexed, so skip the stat for anything else
+                    type = MediaType.forName(name);
+                    if (type == MediaType.OTHER) {
+                        continue;
+                    }
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = FileStats.read(new File(dir, name).toPath());
+                } catch (IOException ex) {
+                    // deleted while listing
+                    continue;
+                }
+                long modified = attrs.lastModifiedTime().toMillis();
+                long size = attrs.size();
+                if (entry != null && entry.modified == modified && entry.size == size) {
+                    reused++;
+                } else {
+                    if (!attrs.isRegularFile()) {
+                        continue;
+                    }
+                    entry = new Entry(name, name, modified, size, type, null, null);
+                }
+                entries.add(entry);
+            }
+        }
+        logger.log(Level.FINE, "Rescanned {0}, reused {1} of {2} entries",
+                new Object[]{dir, reused, entries.size()});
+        if (dirModified > scanned - MTIME_GRANULARITY) {
+            // a change later in the same tick would not move the modification time
+            dirModified = Long.MIN_VALUE;
+        }
+        return new DirectoryIndex(dir.getAbsolutePath(), dirModified, Collections.unmodifiableList(entries));
+    }
+
+    private File indexFile(File dir) {
+        String path = dir.getAbsolutePath();
+        return new File(indexDir, Integer.toHexString(path.hashCode()) + "-" + path.length() + ".idx");
+    }
+
+    private DirectoryIndex load(File dir) {
+        File f = indexFile(dir);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String path = in.readUTF();
+            if (!path.equals(dir.getAbsolutePath())) {
+                // hash collision with another directory
+                return null;
+            }
+            long modified = in.readLong();
+            int count = in.readInt();
+            MediaType[] types = MediaType.values();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String title = in.readUTF();
+                long entryModified = in.readLong();
+                long size = in.readLong();
+                MediaType type = types[in.readByte()];
+                String partialHash = in.readBoolean() ? in.readUTF() : null;
+                String contentHash = in.readBoolean() ? in.readUTF() : null;
+                entries.add(new Entry(name, title, entryModified, size, type, partialHash, contentHash));
+            }
+            return new DirectoryIndex(path, modified, Collections.unmodifiableList(entries));
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.WARNING, "Ignoring unreadable index " + f, ex);
+            return null;
+        }
+    }
+
+    private void store(DirectoryIndex index) {
+        File f = indexFile(new File(index.path));
+        if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+            logger.log(Level.WARNING, "Unable to create index directory {0}", indexDir);
+            return;
+        }
+        File tmp = new File(indexDir, f.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(index.path);
+                out.writeLong(index.modified);
+                out.writeInt(index.entries.size());
+                for (Entry entry : index.entries) {
+                    out.writeUTF(entry.name);
+                    out.writeUTF(entry.title);
+                    out.writeLong(entry.modified);
+                    out.writeLong(entry.size);
+                    out.writeByte(entry.type.ordinal());
+                    out.writeBoolean(entry.partialHash != null);
+                    if (entry.partialHash != null) {
+                        out.writeUTF(entry.partialHash);
+                    }
+                    out.writeBoolean(entry.contentHash != null);
+                    if (entry.contentHash != null) {
+                        out.writeUTF(entry.contentHash);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to write index " + f, ex);
+            tmp.delete();
+        }
+    }
+
+    private static class DirectoryIndex {
+
+        private final String path;
+        private long modified;
+        private final List<Entry> entries;
+
+        DirectoryIndex(String path, long modified, List<Entry> entries) {
+            this.path = path;
+            this.modified = modified;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * An immutable index record for a single media file.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final String title;
+        private final long modified;
+        private final long size;
+        private final MediaType type;
+        private final String partialHash;
+        private final String contentHash;
+
+        Entry(String name, String title, long modified, long size, MediaType type, String partialHash, String contentHash) {
+            this.name = name;
+            this.title = title;
+            this.modified = modified;
+            this.size = size;
+            this.type = type;
+            this.partialHash = partialHash;
+            this.contentHash = contentHash;
+        }
+
+        Entry withHashes(String partialHash, String contentHash) {
+            return new Entry(name, title, modified, size, type, partialHash, contentHash);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public MediaType getType() {
+            return type;
+        }
+
+        /**
+         * @return The cached hash of the start and end of the file, or null.
+         */
+        public String getPartialHash() {
+            return partialHash;
+        }
+
+        /**
+         * @return The cached hash of the whole file, or null.
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.example.media;
 
 import java.io.Serializable;
 import java.util.Date;
-import javax.activation.MimetypesFileTypeMap;
 
 
 public class MediaItem implements Serializable {
@@ -11,6 +10,8 @@ public class MediaItem implements Serializable {
     private Date date;
     private String id;
     private String tags;
+    private String contentHash;
+    private transient MediaType type;
 
     public MediaItem() {}
     
@@ -18,6 +19,7 @@ public class MediaItem implements Serializable {
         this.title = title;
         this.date = date;
         this.id = id;
+        this.type = MediaType.forName(id);
     }
 
     public String getTitle() {
@@ -37,18 +39,11 @@ public class MediaItem implements Serializable {
     }
 
     public MediaType getType() {
-        String type = new MimetypesFileTypeMap().getContentType(id);
-        if (type.startsWith("image")) {
-            return MediaType.IMAGE;
-        } else if (type.contains("application/ogg") || type.contains("video/ogg")) {
-            return MediaType.OGV_VIDEO;
-        } else if (type.contains("video/mp4")) {
-            return MediaType.MP4_VIDEO;
-        } else if (type.contains("video/x-flv")) {
-            return MediaType.FLASH_VIDEO;
-        } else {
-            return MediaType.OTHER;
+        if (type == null) {
+            // resolved once per id, the extension table is shared
+            type = MediaType.forName(id);
         }
+        return type;
     }
 
     public String getId() {
@@ -57,6 +52,7 @@ public class MediaItem implements Serializable {
     
     public void setId(String id) {
         this.id = id;
+        this.type = null;
     }
     
     public String getTags() {
@@ -67,6 +63,18 @@ public class MediaItem implements Serializable {
         this.tags = tags;
     }
 
+    /**
+     * @return The content hash shared by duplicates of this item, null when
+     * the item is not known to have duplicates.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
     @Override
     public String toString() {
         return getTitle() + ":" + getType() + ":" + getDate() + ":" + getId();
@@ -0,0 +1,16 @@
+package com.example.media;
+
+import java.util.EventListener;
+
+/**
+ * Receives notifications about MediaItems created, updated or deleted through
+ * a MediaManager.
+ */
+public interface MediaItemListener extends EventListener {
+
+    public void mediaItemCreated(MediaItem item);
+
+    public void mediaItemUpdated(MediaItem item);
+
+    public void mediaItemDeleted(String id);
+}
@@ -0,0 +1,45 @@
+package com.example.media;
+
+/**
+ * The outcome of one item of a MediaManager batch operation.
+ */
+public class MediaItemResult {
+
+    private final String id;
+    private final MediaItem mediaItem;
+    private final Exception error;
+
+    public MediaItemResult(String id, MediaItem mediaItem, Exception error) {
+        this.id = id;
+        this.mediaItem = mediaItem;
+        this.error = error;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The fetched, created or updated item, null for deletions and
+     * failures.
+     */
+    public MediaItem getMediaItem() {
+        return mediaItem;
+    }
+
+    /**
+     * @return The reason the item failed or null if it succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return id + (error == null ? ":OK" : ":" + error);
+    }
+}
@@ -3,8 +3,11 @@ package com.example.media;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 
 public interface MediaManager extends Serializable {
@@ -13,9 +16,47 @@ public interface MediaManager extends Serializable {
     
     public MediaItem getMediaItem(String id) throws FileNotFoundException ;
     
-    public void updateMediaItem(MediaItem item) throws FileNotFoundException;
+    public void updateMediaItem(MediaItem item) throws IOException;
     
-    public void deleteMediaItem(String id);
+    public void deleteMediaItem(String id) throws IOException;
+
+    /**
+     * Creates many items, sharing the metadata writes and index updates.
+     * @param items The items and their content, in the order of the results.
+     * @return One result per item, failed items do not stop the batch.
+     */
+    public List<MediaItemResult> createMediaItems(Map<MediaItem, InputStream> items);
+
+    /**
+     * @param ids The ids of the items to get.
+     * @return One result per id, a FileNotFoundException for missing items.
+     */
+    public List<MediaItemResult> getMediaItems(Collection<String> ids);
+
+    /**
+     * Updates many items, sharing the metadata writes and index updates.
+     * @return One result per item.
+     */
+    public List<MediaItemResult> updateMediaItems(Collection<MediaItem> items);
+
+    /**
+     * Deletes many items, sharing the metadata writes and index updates.
+     * @return One result per id.
+     */
+    public List<MediaItemResult> deleteMediaItems(Collection<String> ids);
+    
+    /**
+     * @throws InterruptedIOException If the listing thread is interrupted.
+     */
+    public List<MediaGroup> listMediaItems(MediaQualifier filter) throws IOException;
     
-    public List<MediaGroup> listMediaItems(MediaQualifier filter) throws FileNotFoundException;
+    /**
+     * Lists a single page of items in the MediaQualifier sort order.
+     * @param filter The types, tags and order of the listing.
+     * @param pageSize The maximum number of items on the page.
+     * @param continuationToken null for the first page, otherwise the token of
+     * the previous MediaPage.
+     * @throws InterruptedIOException If the listing thread is interrupted.
+     */
+    public MediaPage listMediaItems(MediaQualifier filter, int pageSize, String continuationToken) throws IOException;
 }
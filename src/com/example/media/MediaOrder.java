@@ -1,8 +1,150 @@
 package com.example.media;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Comparator;
+
 public enum MediaOrder {
     DATE_ASC,
     DATE_DESC,
     TITLE_ASC,
-    TITLE_DESC;
-}
\ No newline at end of file
+    TITLE_DESC,
+    /** Sorted by date and grouped by month. */
+    MONTH_ASC,
+    MONTH_DESC,
+    /** Sorted by date and grouped by year. */
+    YEAR_ASC,
+    YEAR_DESC;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    // immutable and thread safe, shared by all threads
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM);
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("MMMM yyyy");
+
+    /**
+     * @return The comparator sorting MediaItems in this order, ties are 
+     * broken by id.
+     */
+    public Comparator<MediaItem> getComparator() {
+        switch (this) {
+            case DATE_DESC:
+            case MONTH_DESC:
+            case YEAR_DESC:
+                return DESC_DATE_ORDER;
+            case DATE_ASC:
+            case MONTH_ASC:
+            case YEAR_ASC:
+                return ASC_DATE_ORDER;
+            case TITLE_DESC:
+                return DESC_TITLE_ORDER;
+            default:
+                return ASC_TITLE_ORDER;
+        }
+    }
+
+    /**
+     * Computes the key of the MediaGroup an item belongs to in this order. 
+     * Items with equal keys share a group, and the keys of date orders are 
+     * the epoch day, the epoch month or the year of the item in the default 
+     * time zone. The key only depends on the item so it can be computed from
+     * parallel code.
+     * @return The group key.
+     */
+    public long getGroupKey(MediaItem item) {
+        return getGroupKey(item, ZoneId.systemDefault());
+    }
+
+    /**
+     * @param zone The time zone the dates of items are grouped in.
+     * @return The group key, see getGroupKey(MediaItem).
+     */
+    public long getGroupKey(MediaItem item, ZoneId zone) {
+        switch (this) {
+            case TITLE_ASC:
+            case TITLE_DESC:
+                return Character.toUpperCase(item.getTitle().charAt(0));
+        }
+        long millis = item.getDate().getTime();
+        long seconds = Math.floorDiv(millis, 1000);
+        long epochDay = Math.floorDiv(seconds + zone.getRules().getOffset(Instant.ofEpochSecond(seconds)).getTotalSeconds(), SECONDS_PER_DAY);
+        switch (this) {
+            case DATE_ASC:
+            case DATE_DESC:
+                return epochDay;
+            case MONTH_ASC:
+            case MONTH_DESC:
+                LocalDate date = LocalDate.ofEpochDay(epochDay);
+                return date.getYear() * 12L + date.getMonthValue() - 1;
+            default:
+                return LocalDate.ofEpochDay(epochDay).getYear();
+        }
+    }
+
+    /**
+     * Formats the title of a group, once per group rather than once per item.
+     * @param groupKey A key returned by getGroupKey.
+     * @return The date, month or year of date orders and the first letter of
+     * the titles otherwise.
+     */
+    public String getGroupTitle(long groupKey) {
+        switch (this) {
+            case DATE_ASC:
+            case DATE_DESC:
+                return DAY_FORMAT.format(LocalDate.ofEpochDay(groupKey));
+            case MONTH_ASC:
+            case MONTH_DESC:
+                return MONTH_FORMAT.format(LocalDate.of((int) Math.floorDiv(groupKey, 12), (int) Math.floorMod(groupKey, 12) + 1, 1));
+            case YEAR_ASC:
+            case YEAR_DESC:
+                return Long.toString(groupKey);
+            default:
+                return String.valueOf((char) groupKey);
+        }
+    }
+
+    /**
+     * @return The title of the MediaGroup an item belongs to in this order.
+     */
+    public String getGroupTitle(MediaItem item) {
+        return getGroupTitle(getGroupKey(item));
+    }
+
+    private static final Comparator<MediaItem> DESC_DATE_ORDER = new Comparator<MediaItem>() {
+
+        @Override
+        public int compare(MediaItem o1, MediaItem o2) {
+            int order = Long.compare(o2.getDate().getTime(), o1.getDate().getTime());
+            return order != 0 ? order : o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    private static final Comparator<MediaItem> ASC_DATE_ORDER = new Comparator<MediaItem>() {
+
+        @Override
+        public int compare(MediaItem o1, MediaItem o2) {
+            int order = Long.compare(o1.getDate().getTime(), o2.getDate().getTime());
+            return order != 0 ? order : o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    private static final Comparator<MediaItem> ASC_TITLE_ORDER = new Comparator<MediaItem>() {
+
+        @Override
+        public int compare(MediaItem o1, MediaItem o2) {
+            int order = o1.getTitle().compareToIgnoreCase(o2.getTitle());
+            return order != 0 ? order : o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    private static final Comparator<MediaItem> DESC_TITLE_ORDER = new Comparator<MediaItem>() {
+
+        @Override
+        public int compare(MediaItem o1, MediaItem o2) {
+            int order = o2.getTitle().compareToIgnoreCase(o1.getTitle());
+            return order != 0 ? order : o1.getId().compareTo(o2.getId());
+        }
+    };
+}
@@ -0,0 +1,34 @@
+package com.example.media;
+
+import java.util.List;
+
+/**
+ * One page of a paged MediaManager listing. Groups are built from the items
+ * of this page only, so a group may continue on the following page.
+ */
+public class MediaPage {
+
+    private final List<MediaGroup> groups;
+    private final String continuationToken;
+
+    public MediaPage(List<MediaGroup> groups, String continuationToken) {
+        this.groups = groups;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<MediaGroup> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return The token to pass to MediaManager.listMediaItems to receive the
+     * next page, or null when this is the last page.
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+}
@@ -9,6 +9,20 @@ public class MediaQualifier {
     private List<MediaType> types = new ArrayList<>();
     private List<String> tags = new ArrayList<>();
     private MediaOrder sortOrder = MediaOrder.TITLE_ASC;
+    private TagMatch tagMatch = TagMatch.ALL;
+    private boolean collapseDuplicates = false;
+    private int maxDepth = 0;
+    private boolean followLinks = false;
+
+    /**
+     * How the tags of a qualifier are combined.
+     */
+    public enum TagMatch {
+        /** Items must carry every tag. */
+        ALL,
+        /** Items must carry at least one of the tags. */
+        ANY;
+    }
     
     public List<MediaType> getTypes() {
         return types;
@@ -34,6 +48,58 @@ public class MediaQualifier {
     }
 
 
+    public TagMatch getTagMatch() {
+        return tagMatch;
+    }
+
+    public MediaQualifier setTagMatch(TagMatch tagMatch) {
+        this.tagMatch = tagMatch;
+        return this;
+    }
+
+    public boolean isCollapseDuplicates() {
+        return collapseDuplicates;
+    }
+
+    /**
+     * @param collapseDuplicates true to list only one item of the items with
+     * equal content.
+     */
+    public MediaQualifier setCollapseDuplicates(boolean collapseDuplicates) {
+        this.collapseDuplicates = collapseDuplicates;
+        return this;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth The number of subdirectory levels below the directory
+     * to list, 0 for the directory only and Integer.MAX_VALUE for the whole
+     * tree.
+     */
+    public MediaQualifier setMaxDepth(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Depth must not be negative");
+        }
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public boolean isFollowLinks() {
+        return followLinks;
+    }
+
+    /**
+     * @param followLinks true to descend into symbolic links to directories
+     * when listing subdirectories, each directory is still listed once.
+     */
+    public MediaQualifier setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+        return this;
+    }
+
     public MediaOrder getSortOrder() {
         return sortOrder;
     }
@@ -45,6 +111,6 @@ public class MediaQualifier {
        
     @Override
     public String toString() {
-        return types.toString() + ":" + sortOrder + ":" + tags.toString();
+        return types.toString() + ":" + sortOrder + ":" + tagMatch + tags.toString();
     }
 }
\ No newline at end of file
@@ -1,9 +1,104 @@
 package com.example.media;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 public enum MediaType {
     OTHER,
     FLASH_VIDEO,
     OGV_VIDEO,
     MP4_VIDEO,
     IMAGE;
-}
\ No newline at end of file
+
+    /**
+     * Resolves the MediaType of a file name, path or MediaItem id from its 
+     * extension using the mappings in META-INF/mime.types.
+     * @param name A file name, path or id.
+     * @return The MediaType, MediaType.OTHER when unknown.
+     */
+    public static MediaType forName(String name) {
+        if (name == null) {
+            return OTHER;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/') || dot < name.lastIndexOf('\\')) {
+            return OTHER;
+        }
+        MediaType type = ExtensionTable.TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? OTHER : type;
+    }
+
+    /**
+     * @return The lower case extensions META-INF/mime.types maps to this
+     * type, the same table forName resolves names with.
+     */
+    List<String> getExtensions() {
+        List<String> extensions = new ArrayList<>();
+        for (Map.Entry<String, MediaType> entry : ExtensionTable.TYPES.entrySet()) {
+            if (entry.getValue() == this) {
+                extensions.add(entry.getKey());
+            }
+        }
+        return extensions;
+    }
+
+    private static MediaType forContentType(String type) {
+        if (type.startsWith("image")) {
+            return IMAGE;
+        } else if (type.contains("application/ogg") || type.contains("video/ogg")) {
+            return OGV_VIDEO;
+        } else if (type.contains("video/mp4")) {
+            return MP4_VIDEO;
+        } else if (type.contains("video/x-flv")) {
+            return FLASH_VIDEO;
+        } else {
+            return OTHER;
+        }
+    }
+
+    // Loaded on first use and shared, lower case extension -> MediaType
+    private static class ExtensionTable {
+
+        private static final Map<String, MediaType> TYPES = load();
+
+        private static Map<String, MediaType> load() {
+            Map<String, MediaType> types = new HashMap<>();
+            try (InputStream in = MediaType.class.getResourceAsStream("/META-INF/mime.types")) {
+                if (in == null) {
+                    Logger.getLogger("com.example.media.MediaType").log(Level.WARNING, "META-INF/mime.types not found");
+                    return types;
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] parts = line.split("\\s+");
+                    MediaType type = forContentType(parts[0]);
+                    for (int i = 1; i < parts.length; i++) {
+                        String ext = parts[i].toLowerCase(Locale.ROOT);
+                        if (!types.containsKey(ext)) {
+                            types.put(ext, type);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger("com.example.media.MediaType").log(Level.WARNING, "Unable to read META-INF/mime.types", ex);
+            }
+            return Collections.unmodifiableMap(types);
+        }
+    }
+}
@@ -2,45 +2,97 @@ package com.example.media;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
-public class MediaTypeFilenameFilter implements FilenameFilter {
+public class MediaTypeFilenameFilter implements FilenameFilter, DirectoryStream.Filter<Path> {
+
+    // Extension lookup table compiled once from the MediaQualifier types and
+    // the META-INF/mime.types table of MediaType, extensions[i] maps to
+    // extensionTypes[i]
+    private final String[] extensions;
+    private final MediaType[] extensionTypes;
 
-    private MediaQualifier mediaQualifier = null;
-    
     public MediaTypeFilenameFilter(MediaQualifier mediaQualifier) {
-        this.mediaQualifier = mediaQualifier;
-    }
-    
-    @Override
-    public boolean accept(File dir, String name) {
-        StringBuilder regexParts = new StringBuilder();
+        List<String> exts = new ArrayList<>();
+        List<MediaType> types = new ArrayList<>();
         for (MediaType type : mediaQualifier.getTypes()) {
-            switch (type) {
-                case OGV_VIDEO:
-                    regexParts.append(".*ogv$|");
-                    break;
-                case MP4_VIDEO:
-                    regexParts.append(".*mpg4$|.*mp4$|.*m4v$|");
-                    break;
-                case FLASH_VIDEO:
-                    regexParts.append(".*flv$|");
-                    break;
-                case IMAGE:
-                    regexParts.append(".*jpg$|.*jpeg$|.*png$|.*gif$|");
-                    break;
+            for (String ext : type.getExtensions()) {
+                if (!exts.contains(ext)) {
+                    exts.add(ext);
+                    types.add(type);
+                }
             }
         }
-        regexParts.deleteCharAt(regexParts.length() - 1);
-        
-        if (name.toLowerCase().matches(regexParts.toString())) {
-            File f = new File(dir, name);
-            if (f.isFile()) {
-                return true;
-            } else {
-                return false;
+        extensions = exts.toArray(new String[exts.size()]);
+        extensionTypes = types.toArray(new MediaType[types.size()]);
+    }
+
+    /**
+     * Matches the extension of a file name against the accepted types without
+     * touching the file system.
+     * @param name A file name.
+     * @return The MediaType of the name or null if the name is not accepted.
+     */
+    public MediaType getType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        int length = name.length() - dot - 1;
+        for (int i = 0; i < extensions.length; i++) {
+            String ext = extensions[i];
+            if (ext.length() == length && name.regionMatches(true, dot + 1, ext, 0, length)) {
+                return extensionTypes[i];
             }
-        } else {
+        }
+        return null;
+    }
+
+    @Override
+    public boolean accept(File dir, String name) {
+        return getType(name) != null && new File(dir, name).isFile();
+    }
+
+    /**
+     * Accepts regular files with a matching name. Names are matched first so
+     * only candidate files have their attributes read.
+     * @param entry A directory entry.
+     * @return true if the entry is an accepted regular file.
+     */
+    @Override
+    public boolean accept(Path entry) {
+        if (getType(entry.getFileName().toString()) == null) {
+            return false;
+        }
+        try {
+            return FileStats.read(entry).isRegularFile();
+        } catch (IOException ex) {
+            // vanished or unreadable entry, skip it like File.isFile() would
             return false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Lists the entries of a directory with an accepted name without reading
+     * their attributes.
+     * @param dir The directory to list.
+     * @return The candidate entries, in directory order.
+     * @throws IOException If the directory can not be read.
+     */
+    public List<Path> listCandidates(File dir) throws IOException {
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path p : stream) {
+                if (getType(p.getFileName().toString()) != null) {
+                    candidates.add(p);
+                }
+            }
+        }
+        return candidates;
+    }
+}
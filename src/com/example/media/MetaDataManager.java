@@ -0,0 +1,531 @@
+package com.example.media;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the title, tags and date of MediaItems, keyed by the absolute
+ * path of their file, and keeps a TagIndex of the stored tags so tag queries
+ * do not have to look at every item.
+ * <p>
+ * Changes are appended to a log file as checksummed entries. A change is
+ * applied in memory at once and the call returns when its entry is forced to
+ * disk; concurrent callers share a single write and force (group commit).
+ * A failed write throws to its caller, is cut from the end of the log and
+ * queued again, so a later change writes it along with its own entries.
+ * On startup the log is replayed and a torn or corrupt tail left by a crash
+ * is cut off. A log which can not be read is left untouched and the manager
+ * keeps changes in memory only. When the log holds more than twice as many entries as there
+ * are items it is compacted into a fresh log which replaces the old one
+ * atomically.
+ */
+public class MetaDataManager {
+
+    private static final Logger logger = Logger.getLogger("com.example.media.MetaDataManager");
+    private static final int MAGIC = 0x4D455441; // "META"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAX_ENTRY_SIZE = 1 << 20;
+    // returned by replay for a log which has to be left as it is
+    private static final long UNREADABLE = -1;
+    private static final long COMPACT_MIN_ENTRIES = 1024;
+    private final File file;
+    // the fields below are guarded by this
+    private final Map<String, Record> records = new HashMap<>();
+    private final TagIndex tagIndex = new TagIndex();
+    // entries applied in memory but not yet written
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq = 0;
+    private long logEntries = 0;
+    // the fields below are guarded by writeLock
+    private final Object writeLock = new Object();
+    private FileChannel channel = null;
+    // the length of the log up to the last forced entry
+    private long logLength = 0;
+    private volatile long committedSeq = 0;
+
+    /**
+     * Creates a store backed by a log file, recovering its contents if it
+     * exists.
+     * @param file The log file, its directory is created if needed.
+     */
+    public MetaDataManager(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("Metadata file must not be null");
+        }
+        this.file = file;
+        synchronized (writeLock) {
+            open();
+        }
+    }
+
+    /**
+     * @return The default location, ~/.mediamanager/metadata
+     */
+    public static File getDefaultLocation() {
+        return new File(System.getProperty("user.home"), ".mediamanager" + File.separator + "metadata");
+    }
+
+    /**
+     * Stores the metadata of an item, returning once it is on disk.
+     * @param path The absolute path of the item's file.
+     * @param item The item holding the title, tags and date.
+     * @throws IOException If the log could not be written, the change is
+     * kept in memory and written with the next change.
+     */
+    public void put(String path, MediaItem item) throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = apply(PUT, path, new Record(item.getTitle(), item.getTags(), item.getDate() == null ? Long.MIN_VALUE : item.getDate().getTime()));
+        }
+        commit(seq);
+    }
+
+    /**
+     * Stores the metadata of many items with a single log write.
+     * @param items The items by the absolute path of their file.
+     * @throws IOException If the log could not be written.
+     */
+    public void putAll(Map<String, MediaItem> items) throws IOException {
+        if (items.isEmpty()) {
+            return;
+        }
+        long seq = 0;
+        synchronized (this) {
+            for (Map.Entry<String, MediaItem> entry : items.entrySet()) {
+                MediaItem item = entry.getValue();
+                seq = apply(PUT, entry.getKey(), new Record(item.getTitle(), item.getTags(), item.getDate() == null ? Long.MIN_VALUE : item.getDate().getTime()));
+            }
+        }
+        commit(seq);
+    }
+
+    /**
+     * Removes the metadata of many items with a single log write.
+     * @param paths The absolute paths of the items' files.
+     * @throws IOException If the log could not be written.
+     */
+    public void removeAll(Collection<String> paths) throws IOException {
+        long seq = 0;
+        synchronized (this) {
+            for (String path : paths) {
+                if (records.containsKey(path)) {
+                    seq = apply(REMOVE, path, null);
+                }
+            }
+        }
+        if (seq > 0) {
+            commit(seq);
+        }
+    }
+
+    /**
+     * @param path The absolute path of an item's file.
+     * @return The stored metadata or null if there is none.
+     */
+    public synchronized Record get(String path) {
+        return records.get(path);
+    }
+
+    /**
+     * Removes the metadata of an item, returning once the removal is on disk.
+     * @param path The absolute path of the item's file.
+     * @throws IOException If the log could not be written.
+     */
+    public void remove(String path) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (!records.containsKey(path)) {
+                return;
+            }
+            seq = apply(REMOVE, path, null);
+        }
+        commit(seq);
+    }
+
+    /**
+     * @param tags Normalized tags as returned by MediaQualifier.getTags().
+     * @param matchAll true for the paths carrying all tags, false for the
+     * paths carrying any of them.
+     * @return The absolute paths of the matching items.
+     */
+    public synchronized List<String> findByTags(Collection<String> tags, boolean matchAll) {
+        return matchAll ? tagIndex.matchAll(tags) : tagIndex.matchAny(tags);
+    }
+
+    /**
+     * Writes any pending changes and closes the log. Later changes are only
+     * kept in memory.
+     */
+    public void close() {
+        long seq;
+        synchronized (this) {
+            seq = appendedSeq;
+        }
+        try {
+            commit(seq);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to write metadata log " + file, ex);
+        }
+        synchronized (writeLock) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Unable to close metadata log " + file, ex);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Applies a change in memory and queues its log entry, must hold this.
+     * @return The sequence number of the entry.
+     */
+    private long apply(byte op, String path, Record record) {
+        if (op == PUT) {
+            records.put(path, record);
+            tagIndex.put(path, TagIndex.parseTags(record.tags));
+        } else {
+            records.remove(path);
+            tagIndex.remove(path);
+        }
+        try {
+            writeEntry(new DataOutputStream(pending), op, path, record);
+        } catch (IOException ex) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(ex);
+        }
+        logEntries++;
+        return ++appendedSeq;
+    }
+
+    /**
+     * Returns when the entry with the sequence number is on disk. The first
+     * caller to get the write lock writes every queued entry, later callers
+     * whose entries were part of that write return straight away. A caller
+     * whose entry is still not on disk after a failed write writes it again.
+     * @throws IOException If the queued entries could not be written and
+     * forced, they are queued again.
+     */
+    private void commit(long seq) throws IOException {
+        synchronized (writeLock) {
+            if (committedSeq >= seq) {
+                return;
+            }
+            if (channel == null) {
+                // the log could not be opened or is closed, changes are only kept in memory
+                synchronized (this) {
+                    pending.reset();
+                    committedSeq = appendedSeq;
+                }
+                return;
+            }
+            if (!channel.isOpen()) {
+                // closed by an interrupted writer
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                discardTail();
+            }
+            byte[] batch;
+            long batchSeq;
+            boolean compact;
+            synchronized (this) {
+                batch = pending.toByteArray();
+                pending.reset();
+                batchSeq = appendedSeq;
+                compact = logEntries > COMPACT_MIN_ENTRIES && logEntries > 2L * records.size();
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException ex) {
+                synchronized (this) {
+                    byte[] later = pending.toByteArray();
+                    pending.reset();
+                    pending.write(batch, 0, batch.length);
+                    pending.write(later, 0, later.length);
+                }
+                discardTail();
+                throw ex;
+            }
+            logLength += batch.length;
+            committedSeq = batchSeq;
+            if (compact) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Cuts a partly written batch from the end of the log so entries written
+     * after it are not hidden behind a torn entry, must hold writeLock. A
+     * channel closed by an interrupt is cut when it is reopened.
+     */
+    private void discardTail() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (channel.size() > logLength) {
+                channel.truncate(logLength);
+            }
+            channel.position(logLength);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to cut the end of metadata log " + file, ex);
+        }
+    }
+
+    /**
+     * Replaces the log with one PUT entry per item, must hold writeLock.
+     */
+    private void compact() {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        long count;
+        synchronized (this) {
+            // queued entries are already part of the snapshot, writing them
+            // again later is harmless
+            DataOutputStream out = new DataOutputStream(snapshot);
+            try {
+                writeHeader(out);
+                for (Map.Entry<String, Record> entry : records.entrySet()) {
+                    writeEntry(out, PUT, entry.getKey(), entry.getValue());
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            count = records.size();
+            logEntries = count + (appendedSeq - committedSeq);
+        }
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".compact");
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(snapshot.toByteArray());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.log(Level.FINE, "Compacted metadata log {0} to {1} entries", new Object[]{file, count});
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to compact metadata log " + file, ex);
+            tmp.delete();
+        }
+        if (!channel.isOpen()) {
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                logLength = channel.size();
+                channel.position(logLength);
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Unable to reopen metadata log " + file, ex);
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Replays the log and opens it for appending, must hold writeLock.
+     */
+    private void open() {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.log(Level.WARNING, "Unable to create metadata directory {0}", dir);
+            return;
+        }
+        long validLength = file.isFile() ? replay() : 0;
+        if (validLength == UNREADABLE) {
+            // keep the log for a later run rather than starting it over
+            channel = null;
+            return;
+        }
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (validLength == 0) {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                writeHeader(new DataOutputStream(header));
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(header.toByteArray()));
+                channel.force(false);
+            } else if (channel.size() > validLength) {
+                logger.log(Level.WARNING, "Discarding {0} bytes of an incomplete metadata log {1}", new Object[]{channel.size() - validLength, file});
+                channel.truncate(validLength);
+                channel.force(false);
+            }
+            logLength = channel.size();
+            channel.position(logLength);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Unable to open metadata log " + file + ", metadata changes will not be kept", ex);
+            channel = null;
+        }
+    }
+
+    /**
+     * Only a torn or corrupt tail ends the replay early, any other error
+     * leaves the log to be read again by a later run.
+     * @return The length of the valid part of the log, 0 if it has to be
+     * started over, UNREADABLE if it could not be read.
+     */
+    private long replay() {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic;
+            int version;
+            try {
+                magic = in.readInt();
+                version = in.readInt();
+            } catch (EOFException eof) {
+                // torn header of a log created by a crashed run
+                return 0;
+            }
+            if (magic != MAGIC || version != VERSION) {
+                File aside = new File(file.getPath() + ".unknown");
+                logger.log(Level.WARNING, "Moving metadata of an unknown format {0} to {1}", new Object[]{file, aside});
+                file.renameTo(aside);
+                return 0;
+            }
+            valid = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            synchronized (this) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException eof) {
+                        break;
+                    }
+                    if (length <= 0 || length > MAX_ENTRY_SIZE) {
+                        break;
+                    }
+                    int checksum;
+                    byte[] payload = new byte[length];
+                    try {
+                        checksum = in.readInt();
+                        in.readFully(payload);
+                    } catch (EOFException eof) {
+                        // torn entry at the end of the log
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    replayEntry(new DataInputStream(new ByteArrayInputStream(payload)));
+                    logEntries++;
+                    valid += 8 + length;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.SEVERE, "Unable to read metadata log " + file + " at " + valid + ", metadata changes will not be kept", ex);
+            return UNREADABLE;
+        }
+        return valid;
+    }
+
+    private void replayEntry(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        String path = in.readUTF();
+        if (op == PUT) {
+            Record record = readRecord(in);
+            records.put(path, record);
+            tagIndex.put(path, TagIndex.parseTags(record.tags));
+        } else {
+            records.remove(path);
+            tagIndex.remove(path);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Writes a length and CRC32 prefixed log entry.
+     */
+    private static void writeEntry(DataOutputStream out, byte op, String path, Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(op);
+        payload.writeUTF(path);
+        if (op == PUT) {
+            writeRecord(payload, record);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo(out);
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        String title = in.readBoolean() ? in.readUTF() : null;
+        String tags = in.readBoolean() ? in.readUTF() : null;
+        return new Record(title, tags, in.readLong());
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeBoolean(record.title != null);
+        if (record.title != null) {
+            out.writeUTF(record.title);
+        }
+        out.writeBoolean(record.tags != null);
+        if (record.tags != null) {
+            out.writeUTF(record.tags);
+        }
+        out.writeLong(record.date);
+    }
+
+    /**
+     * The stored metadata of one item.
+     */
+    public static class Record {
+
+        private final String title;
+        private final String tags;
+        private final long date;
+
+        Record(String title, String tags, long date) {
+            this.title = title;
+            this.tags = tags;
+            this.date = date;
+        }
+
+        /**
+         * @return The title or null if none was stored.
+         */
+        public String getTitle() {
+            return title;
+        }
+
+        public String getTags() {
+            return tags;
+        }
+
+        /**
+         * @return The date in epoch milliseconds or Long.MIN_VALUE if none
+         * was stored.
+         */
+        public long getDate() {
+            return date;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.media;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MediaItems kept sorted and grouped in a MediaOrder. Each group is a tree of
+ * its items and the groups are ordered by their first item, so adding,
+ * removing or re-keying a single item is O(log n) instead of sorting and
+ * grouping all items again. The sort key of an item is copied when it is
+ * put, so a changed item is moved by putting it again. Not thread safe.
+ */
+public class SortedMediaGroups {
+
+    private final MediaOrder order;
+    private final ZoneId zone = ZoneId.systemDefault();
+    // the key copies of the held items
+    private final Map<String, MediaItem> keysById = new HashMap<>();
+    private final Map<Long, TreeMap<MediaItem, MediaItem>> groupsByKey = new HashMap<>();
+    // the key of the first item of each group, in display order
+    private final TreeMap<MediaItem, Long> groupHeads;
+
+    public SortedMediaGroups(MediaOrder order) {
+        this.order = order;
+        this.groupHeads = new TreeMap<>(order.getComparator());
+    }
+
+    public MediaOrder getOrder() {
+        return order;
+    }
+
+    public int size() {
+        return keysById.size();
+    }
+
+    public boolean contains(String id) {
+        return keysById.containsKey(id);
+    }
+
+    public void addAll(Collection<MediaItem> items) {
+        for (MediaItem mediaItem : items) {
+            put(mediaItem);
+        }
+    }
+
+    /**
+     * Adds an item or replaces the item with the same id, moving it when its
+     * date, title or group changed.
+     * @param item The new or changed item.
+     */
+    public void put(MediaItem item) {
+        remove(item.getId());
+        MediaItem key = new MediaItem(item.getTitle(), item.getId(), new Date(item.getDate().getTime()));
+        long groupKey = order.getGroupKey(key, zone);
+        TreeMap<MediaItem, MediaItem> group = groupsByKey.get(groupKey);
+        if (group == null) {
+            group = new TreeMap<>(order.getComparator());
+            groupsByKey.put(groupKey, group);
+        } else if (order.getComparator().compare(key, group.firstKey()) < 0) {
+            groupHeads.remove(group.firstKey());
+        }
+        group.put(key, item);
+        groupHeads.put(group.firstKey(), groupKey);
+        keysById.put(key.getId(), key);
+    }
+
+    /**
+     * @param id The id of the item to remove.
+     * @return The removed item or null if there was no item with the id.
+     */
+    public MediaItem remove(String id) {
+        MediaItem key = keysById.remove(id);
+        if (key == null) {
+            return null;
+        }
+        long groupKey = order.getGroupKey(key, zone);
+        TreeMap<MediaItem, MediaItem> group = groupsByKey.get(groupKey);
+        boolean head = group.firstKey() == key;
+        MediaItem item = group.remove(key);
+        if (head) {
+            groupHeads.remove(key);
+            if (group.isEmpty()) {
+                groupsByKey.remove(groupKey);
+            } else {
+                groupHeads.put(group.firstKey(), groupKey);
+            }
+        }
+        return item;
+    }
+
+    public int getGroupCount() {
+        return groupHeads.size();
+    }
+
+    /**
+     * @param groupKey The MediaOrder group key of a group.
+     * @return A copy of the group or null if there is no group with the key.
+     */
+    public MediaGroup getGroup(long groupKey) {
+        TreeMap<MediaItem, MediaItem> items = groupsByKey.get(groupKey);
+        if (items == null) {
+            return null;
+        }
+        MediaGroup group = new MediaGroup(order.getGroupTitle(groupKey));
+        group.getItems().addAll(items.values());
+        return group;
+    }
+
+    /**
+     * @return Copies of all groups in display order.
+     */
+    public List<MediaGroup> getGroups() {
+        return getGroups(null);
+    }
+
+    /**
+     * @param types The types of the items to include or null for all items.
+     * @return Copies of the groups in display order, groups without items of
+     * the types are left out.
+     */
+    public List<MediaGroup> getGroups(Collection<MediaType> types) {
+        List<MediaGroup> groups = new ArrayList<>(groupHeads.size());
+        for (long groupKey : groupHeads.values()) {
+            MediaGroup group = new MediaGroup(order.getGroupTitle(groupKey));
+            for (MediaItem mediaItem : groupsByKey.get(groupKey).values()) {
+                if (types == null || types.contains(mediaItem.getType())) {
+                    group.getItems().add(mediaItem);
+                }
+            }
+            if (!group.getItems().isEmpty()) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.media;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * An inverted index from tags to item paths. Each path is given an int
+ * document number and each tag keeps a sorted int array of the documents
+ * carrying it, so an AND query walks the shortest posting list and an OR
+ * query merges the posting lists of its tags; neither looks at untagged
+ * items or items without any of the queried tags. Not thread safe.
+ */
+public class TagIndex {
+
+    private final Map<String, Integer> docsByPath = new HashMap<>();
+    private final List<String> paths = new ArrayList<>();
+    private final Map<Integer, String[]> tagsByDoc = new HashMap<>();
+    private final Map<String, Postings> postingsByTag = new HashMap<>();
+    private final List<Integer> freeDocs = new ArrayList<>();
+
+    /**
+     * Splits a MediaItem tags string on commas and normalizes each tag the
+     * way MediaQualifier.setTags does.
+     * @param tags The tags string, may be null.
+     * @return The distinct non empty tags.
+     */
+    public static Set<String> parseTags(String tags) {
+        Set<String> parsed = new LinkedHashSet<>();
+        if (tags != null) {
+            for (String tag : tags.split(",")) {
+                tag = tag.trim().toLowerCase();
+                if (!tag.isEmpty()) {
+                    parsed.add(tag);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Sets the tags of a path, replacing its previous tags.
+     * @param path The path of the item.
+     * @param tags The normalized tags, an empty collection removes the path.
+     */
+    public void put(String path, Collection<String> tags) {
+        remove(path);
+        if (tags.isEmpty()) {
+            return;
+        }
+        int doc;
+        if (freeDocs.isEmpty()) {
+            doc = paths.size();
+            paths.add(path);
+        } else {
+            doc = freeDocs.remove(freeDocs.size() - 1);
+            paths.set(doc, path);
+        }
+        docsByPath.put(path, doc);
+        String[] tagArray = tags.toArray(new String[tags.size()]);
+        tagsByDoc.put(doc, tagArray);
+        for (String tag : tagArray) {
+            Postings postings = postingsByTag.get(tag);
+            if (postings == null) {
+                postings = new Postings();
+                postingsByTag.put(tag, postings);
+            }
+            postings.add(doc);
+        }
+    }
+
+    public void remove(String path) {
+        Integer doc = docsByPath.remove(path);
+        if (doc == null) {
+            return;
+        }
+        for (String tag : tagsByDoc.remove(doc)) {
+            Postings postings = postingsByTag.get(tag);
+            postings.remove(doc);
+            if (postings.size == 0) {
+                postingsByTag.remove(tag);
+            }
+        }
+        paths.set(doc, null);
+        freeDocs.add(doc);
+    }
+
+    /**
+     * @param tags Normalized tags.
+     * @return The paths carrying every tag, empty if tags is empty.
+     */
+    public List<String> matchAll(Collection<String> tags) {
+        List<String> result = new ArrayList<>();
+        if (tags.isEmpty()) {
+            return result;
+        }
+        Postings[] lists = new Postings[tags.size()];
+        int n = 0;
+        for (String tag : tags) {
+            Postings postings = postingsByTag.get(tag);
+            if (postings == null) {
+                return result;
+            }
+            lists[n++] = postings;
+        }
+        // walk the shortest list and probe the others
+        Postings shortest = lists[0];
+        for (Postings postings : lists) {
+            if (postings.size < shortest.size) {
+                shortest = postings;
+            }
+        }
+        int[] from = new int[lists.length];
+        next:
+        for (int i = 0; i < shortest.size; i++) {
+            int doc = shortest.docs[i];
+            for (int l = 0; l < lists.length; l++) {
+                if (lists[l] == shortest) {
+                    continue;
+                }
+                int pos = Arrays.binarySearch(lists[l].docs, from[l], lists[l].size, doc);
+                if (pos < 0) {
+                    from[l] = -(pos + 1);
+                    continue next;
+                }
+                from[l] = pos + 1;
+            }
+            result.add(paths.get(doc));
+        }
+        return result;
+    }
+
+    /**
+     * @param tags Normalized tags.
+     * @return The paths carrying at least one of the tags.
+     */
+    public List<String> matchAny(Collection<String> tags) {
+        List<String> result = new ArrayList<>();
+        PriorityQueue<Cursor> heads = new PriorityQueue<>();
+        for (String tag : new LinkedHashSet<>(tags)) {
+            Postings postings = postingsByTag.get(tag);
+            if (postings != null) {
+                heads.add(new Cursor(postings));
+            }
+        }
+        int previous = -1;
+        while (!heads.isEmpty()) {
+            Cursor cursor = heads.poll();
+            int doc = cursor.postings.docs[cursor.pos];
+            if (doc != previous) {
+                result.add(paths.get(doc));
+                previous = doc;
+            }
+            if (++cursor.pos < cursor.postings.size) {
+                heads.add(cursor);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of tagged paths.
+     */
+    public int size() {
+        return docsByPath.size();
+    }
+
+    /**
+     * A sorted, growable int array of document numbers.
+     */
+    private static class Postings {
+
+        private int[] docs = new int[4];
+        private int size = 0;
+
+        void add(int doc) {
+            int pos = Arrays.binarySearch(docs, 0, size, doc);
+            if (pos >= 0) {
+                return;
+            }
+            pos = -(pos + 1);
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            System.arraycopy(docs, pos, docs, pos + 1, size - pos);
+            docs[pos] = doc;
+            size++;
+        }
+
+        void remove(int doc) {
+            int pos = Arrays.binarySearch(docs, 0, size, doc);
+            if (pos >= 0) {
+                System.arraycopy(docs, pos + 1, docs, pos, size - pos - 1);
+                size--;
+            }
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+
+        private final Postings postings;
+        private int pos = 0;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            return Integer.compare(postings.docs[pos], o.postings.docs[o.pos]);
+        }
+    }
+}